@@ -0,0 +1,110 @@
+package org.uniHD.memory.bench;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks of the agent's hot paths for each thread count and writes all results into one file, by
+ * default the checked-in baseline {@code bench/baseline.json}.
+ *
+ * usage: BenchmarkSuite [-quick] [-threads 1,2,4,..] [-out <file>] [-include <regexp>]
+ */
+public final class BenchmarkSuite {
+
+	private final static String DEFAULT_THREADS = "1,2,4,8,16,32,64";
+	private final static String DEFAULT_OUTPUT = "bench/baseline.json";
+
+	/**
+	 * Benchmarks which are executed with every thread count; the dump is single-threaded by design.
+	 */
+	private final static String CONCURRENT_BENCHMARKS = "(LiveObjectMap|Sampler|Cleaner)Benchmark";
+	private final static String SINGLE_THREADED_BENCHMARKS = "DumpBenchmark";
+
+	private BenchmarkSuite() { /* supports static referencing only */ }
+
+	public static void main(String[] args) throws Exception {
+
+		boolean quick = false;
+		String threads = DEFAULT_THREADS;
+		String output = DEFAULT_OUTPUT;
+		String include = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-quick")) {
+				quick = true;
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = args[++i];
+			} else if (args[i].equals("-out") && i + 1 < args.length) {
+				output = args[++i];
+			} else if (args[i].equals("-include") && i + 1 < args.length) {
+				include = args[++i];
+			} else {
+				System.err.println("usage: BenchmarkSuite [-quick] [-threads 1,2,4,..] [-out <file>] [-include <regexp>]");
+				System.exit(1);
+			}
+		}
+
+		final List<RunResult> results = new ArrayList<RunResult>();
+		for (String threadCount : threads.split(",")) {
+			final ChainedOptionsBuilder options = options(quick)
+					.include(include != null ? include : CONCURRENT_BENCHMARKS)
+					.threads(Integer.parseInt(threadCount.trim()));
+			results.addAll(new Runner(options.build()).run());
+		}
+		if (include == null) {
+			results.addAll(new Runner(options(quick).include(SINGLE_THREADED_BENCHMARKS).threads(1).build()).run());
+		}
+		write(results, new File(output));
+		System.out.println("Benchmark results written to " + output);
+	}
+
+	private static ChainedOptionsBuilder options(final boolean quick) {
+		final ChainedOptionsBuilder options = new OptionsBuilder().shouldFailOnError(true);
+		if (quick) {
+			options.warmupIterations(2).measurementIterations(3);
+		}
+		return options;
+	}
+
+	private static void write(final Collection<RunResult> results, final File output) throws IOException {
+		final File parent = output.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		final PrintStream out = new PrintStream(output, "UTF-8");
+		try {
+			ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Creates a temporary source root containing an (empty) source file for the given class, so the sampler
+	 * considers frames of that class as application code.
+	 *
+	 * @param clazz
+	 * @return the source root directory.
+	 * @throws IOException
+	 */
+	static File createSourceRoot(final Class<?> clazz) throws IOException {
+		final File root = Files.createTempDirectory("memDefender-src").toFile();
+		final File source = new File(root, clazz.getName().replace('.', File.separatorChar) + ".java");
+		source.getParentFile().mkdirs();
+		new FileWriter(source).close();
+		root.deleteOnExit();
+		return root;
+	}
+}
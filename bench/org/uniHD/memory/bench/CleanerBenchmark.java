@@ -0,0 +1,67 @@
+package org.uniHD.memory.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.uniHD.memory.LiveObjectMap;
+import org.uniHD.memory.allocation.PhantomCleaner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of the per-object deallocation tracking: registering the phantom reference ({@code register}) and the full
+ * life cycle of a tracked object without the stack walk, i.e. registration in the {@link LiveObjectMap}, phantom
+ * reference creation and the run of its clean-up action ({@code lifecycle}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class CleanerBenchmark {
+
+	private static final String CLASS = "java.lang.Object";
+	private static final String SITE = "org.uniHD.memory.bench.CleanerBenchmark:1";
+
+	private final AtomicLong nextId = new AtomicLong();
+
+	@Benchmark
+	public PhantomCleaner register() {
+		return PhantomCleaner.create(new Object(), new Finalizer(null));
+	}
+
+	@Benchmark
+	public Object lifecycle() {
+		final String objectId = CLASS + "@0x" + Long.toHexString(nextId.getAndIncrement());
+		// the referent must stay reachable until clean() returned, otherwise the reference handler cleans concurrently
+		final Object referent = new Object();
+		LiveObjectMap.allocated(objectId, CLASS, SITE, 16);
+		PhantomCleaner.create(referent, new Finalizer(objectId)).clean();
+		return referent;
+	}
+
+	/**
+	 * Same clean-up action as the sampler's CleanerRunnable.
+	 */
+	private static final class Finalizer implements Runnable {
+
+		private final String objectId;
+
+		private Finalizer(final String objectId) {
+			this.objectId = objectId;
+		}
+
+		@Override
+		public void run() {
+			if (objectId == null) {
+				return;
+			}
+			try {
+				LiveObjectMap.finalized(objectId);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
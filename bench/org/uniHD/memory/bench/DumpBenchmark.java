@@ -0,0 +1,52 @@
+package org.uniHD.memory.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.uniHD.memory.LiveObjectMap;
+import org.uniHD.memory.util.LiveObjectDumpGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.uniHD.memory.util.Constants.FILE_EXTENSION;
+
+/**
+ * Time to write one dump of {@code sites} allocation sites with {@link LiveObjectDumpGenerator#dumpToFile}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class DumpBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	int sites;
+
+	private String fileName;
+
+	@Setup(Level.Trial)
+	public void registerSites() throws IOException {
+		for (int i = 0; i < sites; i++) {
+			LiveObjectMap.allocated("java.lang.Object@0x" + Integer.toHexString(i), "java.lang.Object",
+					"org.uniHD.memory.bench.Site" + i + ":" + (i + 1), 16);
+		}
+		fileName = File.createTempFile("memDefender-dump", "").getPath();
+	}
+
+	@Benchmark
+	public void dumpToFile() throws IOException {
+		LiveObjectDumpGenerator.dumpToFile(fileName, "benchmark");
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteDump() {
+		new File(fileName + FILE_EXTENSION).delete();
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteTempFile() {
+		new File(fileName).delete();
+	}
+}
@@ -0,0 +1,110 @@
+package org.uniHD.memory.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.uniHD.memory.LiveObjectMap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of the shadow registry updates in {@link LiveObjectMap}, measured in batches so that every call of
+ * {@link LiveObjectMap#allocated} registers a new object and every call of {@link LiveObjectMap#finalized} removes a
+ * registered one (the old LiveObjectMapPerformance test only measured failed lookups).
+ *
+ * The number of threads is chosen by the {@link BenchmarkSuite}; {@code sites} controls how much the threads contend
+ * on the same allocation site.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = LiveObjectMapBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = LiveObjectMapBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class LiveObjectMapBenchmark {
+
+	/** operations per thread and iteration */
+	static final int BATCH = 100000;
+
+	private static final String CLASS = "java.lang.Object";
+	private static final long OBJECT_SIZE = 16;
+
+	@Param({"1", "1000"})
+	int sites;
+
+	private String[] siteNames;
+
+	@Setup(Level.Trial)
+	public void createSites() {
+		siteNames = new String[sites];
+		for (int i = 0; i < sites; i++) {
+			siteNames[i] = "org.uniHD.memory.bench.Site" + i + ":" + (i + 1);
+		}
+	}
+
+	/**
+	 * Object ids of one benchmark thread, created up front so the benchmark does not measure string building.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadIds {
+
+		private static final AtomicInteger THREADS = new AtomicInteger();
+
+		final String[] ids = new String[BATCH];
+		int next;
+
+		@Setup(Level.Trial)
+		public void createIds() {
+			final int thread = THREADS.getAndIncrement();
+			for (int i = 0; i < BATCH; i++) {
+				ids[i] = CLASS + "@0x" + Integer.toHexString(thread) + "_" + Integer.toHexString(i);
+			}
+		}
+
+		/**
+		 * Registers all ids up front, used by the {@code finalized} benchmark.
+		 */
+		private void registerAll(final String[] siteNames) {
+			for (int i = 0; i < BATCH; i++) {
+				LiveObjectMap.allocated(ids[i], CLASS, siteNames[i % siteNames.length], OBJECT_SIZE);
+			}
+		}
+
+		/**
+		 * Removes all ids again so the next iteration starts with the same map size.
+		 */
+		private void unregisterAll() throws IOException {
+			for (int i = 0; i < BATCH; i++) {
+				LiveObjectMap.finalized(ids[i]);
+			}
+		}
+
+		@TearDown(Level.Iteration)
+		public void reset() throws IOException {
+			if (next > 0) {
+				unregisterAll();
+			}
+			next = 0;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class RegisteredIds extends ThreadIds {
+
+		@Setup(Level.Iteration)
+		public void register(final LiveObjectMapBenchmark benchmark) {
+			super.registerAll(benchmark.siteNames);
+		}
+	}
+
+	@Benchmark
+	public void allocated(final ThreadIds state) {
+		final int i = state.next++ % BATCH;
+		LiveObjectMap.allocated(state.ids[i], CLASS, siteNames[i % siteNames.length], OBJECT_SIZE);
+	}
+
+	@Benchmark
+	public void finalized(final RegisteredIds state) throws IOException {
+		LiveObjectMap.finalized(state.ids[state.next++ % BATCH]);
+	}
+}
@@ -0,0 +1,56 @@
+package org.uniHD.memory.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.uniHD.memory.allocation.LiveObjectMonitoringSampler;
+import org.uniHD.memory.util.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link LiveObjectMonitoringSampler#sampleAllocation} for an in-scope allocation that happens
+ * {@code depth} out-of-scope frames below the in-scope frame. The stack walk is the dominant cost of the sampler,
+ * so this shows how the overhead grows with the depth of the application's call stacks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class SamplerBenchmark {
+
+	@Param({"1", "16", "64", "256"})
+	int depth;
+
+	private LiveObjectMonitoringSampler sampler;
+
+	@Setup(Level.Trial)
+	public void createSampler() throws IOException {
+		// the sampler only accepts frames of classes found below its source folders: make this class the only one
+		final File sourceRoot = BenchmarkSuite.createSourceRoot(SamplerBenchmark.class);
+		sampler = new LiveObjectMonitoringSampler(new String[] { sourceRoot.getPath() }, new Configuration());
+	}
+
+	@Benchmark
+	public Object sampleAllocation() {
+		final Object newObj = new Object();
+		Frames.descend(depth, sampler, newObj);
+		return newObj;
+	}
+
+	/**
+	 * Out-of-scope frames between the in-scope benchmark method and the sampler.
+	 */
+	private static final class Frames {
+
+		private static void descend(final int depth, final LiveObjectMonitoringSampler sampler, final Object newObj) {
+			if (depth > 1) {
+				descend(depth - 1, sampler, newObj);
+			} else {
+				sampler.sampleAllocation(-1, "java/lang/Object", newObj, 16);
+			}
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package org.uniHD.memory.bench;
+
+import org.uniHD.memory.CallingContextTree;
+import org.uniHD.memory.LiveObjectMap;
+import org.uniHD.memory.MemoryBudget;
+import org.uniHD.memory.allocation.PhantomCleaner;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the agent's allocation and deallocation paths on hundreds of thousands of virtual threads which all allocate
+ * at a few shared sites, with calling contexts, bounded mode and a memory budget switched on, so that every lock of
+ * those paths is contended. A virtual thread waiting for a ReentrantLock or StampedLock unmounts and leaves its carrier
+ * thread to the others; one which parks while it holds a monitor pins its carrier. Such parks are recorded with the
+ * JFR event jdk.VirtualThreadPinned; the report gives the throughput, the CPU utilisation of the carriers, the number
+ * of pinned parks and the fraction of the carrier time they took.
+ *
+ * Mode {@code agent} calls the agent directly; mode {@code monitor} holds the monitor of the site around every call,
+ * as the synchronized site summaries used to, which shows what pinned carriers look like. Needs Java 21 or newer; the
+ * virtual threads are created reflectively, so the benchmark compiles with the agent's Java 8 build.
+ *
+ * usage: VirtualThreadBenchmark [-threads <n>] [-allocations <n>] [-sites <n>] [-mode agent|monitor]
+ */
+public final class VirtualThreadBenchmark {
+
+	private final static String SITE_CLASS = "org.uniHD.memory.bench.Site";
+	private final static String CLASS = "java.lang.Object";
+	private final static long OBJECT_SIZE = 16;
+	private final static String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+	private VirtualThreadBenchmark() { /* supports static referencing only */ }
+
+	public static void main(String[] args) throws Exception {
+
+		int threads = 200000;
+		int allocations = 20;
+		int sites = 4;
+		String mode = "agent";
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-allocations") && i + 1 < args.length) {
+				allocations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-sites") && i + 1 < args.length) {
+				sites = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-mode") && i + 1 < args.length) {
+				mode = args[++i];
+			} else {
+				System.err.println("usage: VirtualThreadBenchmark [-threads <n>] [-allocations <n>] [-sites <n>] "
+						+ "[-mode agent|monitor]");
+				System.exit(1);
+			}
+		}
+		final ExecutorService executor;
+		try {
+			executor = (ExecutorService) java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			System.err.println("Virtual threads need Java 21 or newer, running " + System.getProperty("java.version"));
+			System.exit(1);
+			return;
+		}
+
+		// bounded mode and budget make the allocations go through the sketch and the budget checks as well
+		LiveObjectMap.setBounded(Math.max(1, sites / 2), 64);
+		MemoryBudget.setBudget(64L * 1024 * 1024, 8);
+		final String[] siteNames = new String[sites];
+		final Object[] siteMonitors = new Object[sites];
+		for (int i = 0; i < sites; i++) {
+			siteNames[i] = SITE_CLASS + ":" + (i + 1);
+			siteMonitors[i] = new Object();
+		}
+
+		final Recording recording = new Recording();
+		recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+		recording.start();
+		final long cpuStart = processCpuNanos();
+		final long start = System.nanoTime();
+		final AtomicInteger failures = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			executor.execute(new Allocator(t, allocations, siteNames, mode.equals("monitor") ? siteMonitors : null,
+					failures));
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		final long wallNanos = System.nanoTime() - start;
+		final long cpuNanos = processCpuNanos() - cpuStart;
+		recording.stop();
+		final Path events = Files.createTempFile("memDefender-vthreads", ".jfr");
+		long pinned = 0L;
+		long pinnedNanos = 0L;
+		try {
+			recording.dump(events);
+			for (RecordedEvent event : RecordingFile.readAllEvents(events)) {
+				if (event.getEventType().getName().equals(PINNED_EVENT)) {
+					pinned++;
+					pinnedNanos += event.getDuration().toNanos();
+				}
+			}
+		} finally {
+			recording.close();
+			Files.delete(events);
+		}
+
+		final int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+				Runtime.getRuntime().availableProcessors());
+		System.out.println(String.format(Locale.ROOT, "{\"mode\":\"%s\",\"threads\":%d,\"allocations\":%d,\"sites\":%d,"
+				+ "\"carriers\":%d,\"millis\":%d,\"allocationsPerSecond\":%.0f,\"carrierUtilisation\":%.2f,"
+				+ "\"pinnedParks\":%d,\"pinnedCarrierFraction\":%.4f,\"failures\":%d}",
+				mode, threads, allocations, sites, carriers, wallNanos / 1000000,
+				(double) threads * allocations / wallNanos * 1e9, (double) cpuNanos / wallNanos / carriers,
+				pinned, (double) pinnedNanos / wallNanos / carriers,
+				failures.get()));
+	}
+
+	private static long processCpuNanos() {
+
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getProcessCpuTime();
+	}
+
+	/**
+	 * One virtual thread: allocates at the shared sites with a calling context, observes half of the objects with a
+	 * cleaner which it runs right away and leaves the other half registered.
+	 */
+	private final static class Allocator implements Runnable {
+		private final int thread;
+		private final int allocations;
+		private final String[] siteNames;
+		private final Object[] siteMonitors;
+		private final AtomicInteger failures;
+
+		private Allocator(final int thread, final int allocations, final String[] siteNames, final Object[] siteMonitors,
+				final AtomicInteger failures) {
+			this.thread = thread;
+			this.allocations = allocations;
+			this.siteNames = siteNames;
+			this.siteMonitors = siteMonitors;
+			this.failures = failures;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < allocations; i++) {
+					if (siteMonitors != null) {
+						synchronized (siteMonitors[(thread + i) % siteMonitors.length]) {
+							allocate(i);
+						}
+					} else {
+						allocate(i);
+					}
+				}
+			} catch (IOException e) {
+				failures.incrementAndGet();
+			}
+		}
+
+		private void allocate(final int i) throws IOException {
+			final int siteIndex = (thread + i) % siteNames.length;
+			final String site = siteNames[siteIndex];
+			final String objectId = CLASS + "@0x" + Integer.toHexString(thread) + "_" + Integer.toHexString(i);
+			final int context = CallingContextTree.child(CallingContextTree.ROOT, SITE_CLASS, siteIndex + 1);
+			final Object referent = new Object();
+			if (LiveObjectMap.allocated(objectId, CLASS, site, OBJECT_SIZE, -1, context) && (i & 1) == 0) {
+				PhantomCleaner.create(referent, new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							LiveObjectMap.finalized(objectId);
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+					}
+				}).clean();
+			}
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package org.uniHD.memory;
+
+import com.google.common.flogger.FluentLogger;
+import org.uniHD.memory.LiveObjectMap.AllocationSiteDetails;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+
+/**
+ * A named phase of the application, e.g. the warm-up or the steady state of a load test, with its own counters per
+ * allocation site: the objects allocated while the window is open, those of them still alive (also after the window
+ * is stopped), and the objects of any age deallocated while it is open. The counters of {@link LiveObjectMap} are not
+ * touched, so objects allocated before the window are still tracked and accounted for.
+ *
+ * A tagged window (see {@link #startTagged(String)}) counts only the allocations of one thread and its children, e.g.
+ * those of a single test.
+ *
+ * Starting or stopping a window only replaces the array of open windows, which the allocating threads read once per
+ * allocation; no object is visited. Every tracked object keeps the array of the windows open at its allocation (shared
+ * by all objects allocated meanwhile), so its deallocation is counted by them. Allocations which are sampled out
+ * (adaptive sampling, memory budget) are not counted; tracked ones count with their sampling weight.
+ */
+public final class AllocationWindow {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	public final static String HEADER = "Window" + COLUMN_SEPARATOR +
+										"Source" + COLUMN_SEPARATOR +
+										"Class" + COLUMN_SEPARATOR +
+										"Context" + COLUMN_SEPARATOR +
+										"Thread" + COLUMN_SEPARATOR +
+										"#AllocatedObjects" + COLUMN_SEPARATOR +
+										"Allocated Memory (bytes)" + COLUMN_SEPARATOR +
+										"#SurvivingObjects" + COLUMN_SEPARATOR +
+										"Surviving Memory (bytes)" + COLUMN_SEPARATOR +
+										"#DeAllocatedObjects";
+
+	final static AllocationWindow[] NONE = new AllocationWindow[0];
+
+	// indexes of the counters of a site
+	private final static int ALLOCATED_OBJECTS = 0;
+	private final static int ALLOCATED_BYTES = 1;
+	private final static int SURVIVING_OBJECTS = 2;
+	private final static int SURVIVING_BYTES = 3;
+	private final static int DEALLOCATED_OBJECTS = 4;
+	private final static int NUM_COUNTERS = 5;
+
+	// serializes starting and stopping, the allocating threads only read the array of open windows
+	private final static ReentrantLock LOCK = new ReentrantLock();
+	private final static Map<String, AllocationWindow> WINDOWS = new LinkedHashMap<String, AllocationWindow>();
+	private static volatile AllocationWindow[] open = NONE;
+	// the tagged window of the current thread and its children, see startTagged(String)
+	private final static InheritableThreadLocal<AllocationWindow> TAGGED = new InheritableThreadLocal<AllocationWindow>();
+	// set with the first tagged window, so that the allocations do not look up the thread local before
+	private static volatile boolean tagging = false;
+
+	private final String name;
+	private final long startMillis;
+	private volatile long stopMillis;
+	private final ConcurrentMap<AllocationSiteDetails, AtomicLongArray> counters =
+			new ConcurrentHashMap<AllocationSiteDetails, AtomicLongArray>();
+
+	private AllocationWindow(final String name) {
+
+		if (name.isEmpty() || name.indexOf(COLUMN_SEPARATOR) >= 0) {
+			throw new IllegalArgumentException("Window name must be non-empty and without '" + COLUMN_SEPARATOR
+					+ "', got '" + name + "'");
+		}
+		this.name = name;
+		this.startMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Opens a window; a window of the same name is stopped and replaced by the new one.
+	 *
+	 * @param name - must not contain the column separator.
+	 * @return the new window.
+	 */
+	public static AllocationWindow start(final String name) {
+
+		final AllocationWindow window = new AllocationWindow(name);
+		LOCK.lock();
+		try {
+			final AllocationWindow previous = WINDOWS.remove(name);
+			if (previous != null) {
+				previous.close();
+			}
+			WINDOWS.put(name, window);
+			final AllocationWindow[] windows = Arrays.copyOf(open, open.length + 1);
+			windows[open.length] = window;
+			open = windows;
+		} finally {
+			LOCK.unlock();
+		}
+		logger.atInfo().log("Allocation window %s started", name);
+		return window;
+	}
+
+	/**
+	 * Stops counting the allocations and deallocations of the window; the objects allocated in it are still counted
+	 * as surviving until they are deallocated.
+	 *
+	 * @param name
+	 * @return the window, null if there is none of this name.
+	 */
+	public static AllocationWindow stop(final String name) {
+
+		final AllocationWindow window;
+		LOCK.lock();
+		try {
+			window = WINDOWS.get(name);
+			if (window != null) {
+				window.close();
+			}
+		} finally {
+			LOCK.unlock();
+		}
+		if (window != null) {
+			logger.atInfo().log("Allocation window %s stopped", name);
+		}
+		return window;
+	}
+
+	/**
+	 * Forgets a window, e.g. after its counters were written; stops it first if it is open.
+	 *
+	 * @param name
+	 * @return the window, null if there is none of this name.
+	 */
+	public static AllocationWindow remove(final String name) {
+
+		LOCK.lock();
+		try {
+			final AllocationWindow window = WINDOWS.remove(name);
+			if (window != null) {
+				window.close();
+			}
+			return window;
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return the window of this name, open or stopped, null if there is none.
+	 */
+	public static AllocationWindow get(final String name) {
+
+		LOCK.lock();
+		try {
+			return WINDOWS.get(name);
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * @return all windows, open and stopped, in the order they were started.
+	 */
+	public static List<AllocationWindow> windows() {
+
+		LOCK.lock();
+		try {
+			return new ArrayList<AllocationWindow>(WINDOWS.values());
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * Opens a window which only counts the allocations of the current thread and of the threads it starts while the
+	 * window is open, e.g. those of a test. The window is not listed by {@link #windows()} and does not count the
+	 * deallocations of other objects; the objects allocated in it are counted as surviving until they are deallocated.
+	 *
+	 * @param name - must not contain the column separator.
+	 * @return the new window.
+	 */
+	public static AllocationWindow startTagged(final String name) {
+
+		final AllocationWindow window = new AllocationWindow(name);
+		tagging = true;
+		TAGGED.set(window);
+		return window;
+	}
+
+	/**
+	 * Stops the tagged window of the current thread; threads started in it stop counting for it as well.
+	 *
+	 * @return the window, null if the thread has none.
+	 */
+	public static AllocationWindow stopTagged() {
+
+		final AllocationWindow window = TAGGED.get();
+		if (window != null) {
+			window.stopMillis = System.currentTimeMillis();
+			TAGGED.remove();
+		}
+		return window;
+	}
+
+	/**
+	 * @return the open tagged window of the current thread, null if it has none. Threads started in a tagged window
+	 * 			inherit it and keep it after it was stopped, so stopped windows are skipped here.
+	 */
+	static AllocationWindow tagged() {
+
+		if (!tagging) {
+			return null;
+		}
+		final AllocationWindow window = TAGGED.get();
+		return (window != null && window.stopMillis == 0L) ? window : null;
+	}
+
+	/**
+	 * @return the windows open right now, read once per allocation; must not be modified.
+	 */
+	static AllocationWindow[] open() {
+
+		return open;
+	}
+
+	// called with LOCK held
+	private void close() {
+
+		if (stopMillis != 0L) {
+			return;
+		}
+		stopMillis = System.currentTimeMillis();
+		final List<AllocationWindow> windows = new ArrayList<AllocationWindow>(Arrays.asList(open));
+		windows.remove(this);
+		open = windows.toArray(new AllocationWindow[windows.size()]);
+	}
+
+	/**
+	 * A tracked object was allocated at the site while this window was open.
+	 */
+	void allocated(final AllocationSiteDetails site, final long objectSize, final int weight) {
+
+		final AtomicLongArray siteCounters = counters(site);
+		siteCounters.addAndGet(ALLOCATED_OBJECTS, weight);
+		siteCounters.addAndGet(ALLOCATED_BYTES, objectSize * weight);
+		siteCounters.addAndGet(SURVIVING_OBJECTS, weight);
+		siteCounters.addAndGet(SURVIVING_BYTES, objectSize * weight);
+	}
+
+	/**
+	 * A tracked object allocated in this window was deallocated, whether the window is still open or not.
+	 */
+	void collected(final AllocationSiteDetails site, final long objectSize, final int weight) {
+
+		final AtomicLongArray siteCounters = counters(site);
+		siteCounters.addAndGet(SURVIVING_OBJECTS, -weight);
+		siteCounters.addAndGet(SURVIVING_BYTES, -objectSize * weight);
+	}
+
+	/**
+	 * A tracked object of any age was deallocated while this window was open.
+	 */
+	void deallocated(final AllocationSiteDetails site, final int weight) {
+
+		counters(site).addAndGet(DEALLOCATED_OBJECTS, weight);
+	}
+
+	private AtomicLongArray counters(final AllocationSiteDetails site) {
+
+		AtomicLongArray siteCounters;
+		//look up first, so the counters of a known site are not instantiated (and thrown away) for every allocation
+		if ((siteCounters = counters.get(site)) == null) {
+			final AtomicLongArray newCounters = new AtomicLongArray(NUM_COUNTERS);
+			if ((siteCounters = counters.putIfAbsent(site, newCounters)) == null) {
+				siteCounters = newCounters;
+			}
+		}
+		return siteCounters;
+	}
+
+	/**
+	 * Writes one line per site with allocations or deallocations in this window, in the format of {@link #HEADER}
+	 * (without the header itself). The counters of a line are read one by one, without stopping the allocating threads.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeCounters(final Writer writer) throws IOException {
+
+		for (Map.Entry<AllocationSiteDetails, AtomicLongArray> entry : counters.entrySet()) {
+			writeLine(writer, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Writes one line per site with objects allocated in this window which are still alive, in the format of
+	 * {@link #HEADER} (without the header itself).
+	 *
+	 * @param writer
+	 * @return the number of lines written.
+	 * @throws IOException
+	 */
+	public int writeSurvivors(final Writer writer) throws IOException {
+
+		int lines = 0;
+		for (Map.Entry<AllocationSiteDetails, AtomicLongArray> entry : counters.entrySet()) {
+			if (entry.getValue().get(SURVIVING_OBJECTS) > 0) {
+				writeLine(writer, entry.getKey(), entry.getValue());
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	private void writeLine(final Writer writer, final AllocationSiteDetails site, final AtomicLongArray siteCounters)
+			throws IOException {
+
+		writer.write(name + COLUMN_SEPARATOR + site.toIdentifierColumns() + COLUMN_SEPARATOR
+				+ siteCounters.get(ALLOCATED_OBJECTS) + COLUMN_SEPARATOR + siteCounters.get(ALLOCATED_BYTES)
+				+ COLUMN_SEPARATOR + siteCounters.get(SURVIVING_OBJECTS) + COLUMN_SEPARATOR
+				+ siteCounters.get(SURVIVING_BYTES) + COLUMN_SEPARATOR + siteCounters.get(DEALLOCATED_OBJECTS) + "\n");
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return the time the window was stopped, 0 while it is open.
+	 */
+	public long getStopMillis() {
+		return stopMillis;
+	}
+
+	public boolean isOpen() {
+		return stopMillis == 0L;
+	}
+
+	/**
+	 * @return "name,open|stopped,start ms,stop ms,sites".
+	 */
+	@Override
+	public String toString() {
+		return name + COLUMN_SEPARATOR + (isOpen() ? "open" : "stopped") + COLUMN_SEPARATOR + startMillis
+				+ COLUMN_SEPARATOR + stopMillis + COLUMN_SEPARATOR + counters.size();
+	}
+}
@@ -0,0 +1,194 @@
+package org.uniHD.memory;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Interned calling contexts of allocation sites. A context is a path of stack frames ("class:line") from the outermost
+ * recorded caller down to the allocating frame; every path is a node of a tree, identified by an int. Identical paths
+ * share their node and paths with common callers share the nodes of those callers, so a context costs one int per
+ * allocation site and a lookup per recorded frame.
+ *
+ * A node is looked up by its parent, the class name and the line number of its frame in an open-addressing table of
+ * node ids, so a lookup neither builds a string nor boxes a key. The class names of stack trace elements are interned
+ * by the JVM, so comparing them mostly stops at the reference.
+ *
+ * Nodes are only added, never removed. Lookups of known paths are lock-free; adding a node and resolving a path hold
+ * a ReentrantLock, which a virtual thread of the application waits for without pinning its carrier thread.
+ */
+public final class CallingContextTree {
+
+	/**
+	 * The empty context.
+	 */
+	public final static int ROOT = 0;
+
+	/**
+	 * The separator of the frames of a context, from the allocating frame to its callers.
+	 */
+	public final static char FRAME_SEPARATOR = '<';
+
+	private final static int INITIAL_CAPACITY = 1024;
+
+	private final static ReentrantLock LOCK = new ReentrantLock();
+
+	/**
+	 * Node ids by (parent node, class, line), {@link #ROOT} for an empty slot, at most half full; a slot is set after
+	 * the parent, class and line of its node were stored, and a grown table replaces the old one when it is complete.
+	 */
+	private static volatile AtomicIntegerArray table = new AtomicIntegerArray(INITIAL_CAPACITY * 2);
+
+	/**
+	 * The parent, class and line of every node.
+	 */
+	private static int[] parents = new int[INITIAL_CAPACITY];
+	private static String[] classNames = new String[INITIAL_CAPACITY];
+	private static int[] lines = new int[INITIAL_CAPACITY];
+	private static int numNodes = 1;
+
+	private CallingContextTree() { /* supports static referencing only */ }
+
+	/**
+	 * @param parent - the node of the calling context.
+	 * @param className - the class of the frame called in the context of parent.
+	 * @param line - the line number of the frame.
+	 * @return the node of the frame called in the context of parent.
+	 */
+	public static int child(final int parent, final String className, final int line) {
+
+		final int node = find(table, parent, className, line);
+		return (node != ROOT) ? node : addNode(parent, className, line);
+	}
+
+	/**
+	 * @param node
+	 * @return the frames of the context, from the allocating frame to the outermost caller separated by
+	 * 			{@link #FRAME_SEPARATOR}; the empty string for the {@link #ROOT}.
+	 */
+	public static String path(int node) {
+
+		LOCK.lock();
+		try {
+			final StringBuilder result = new StringBuilder();
+			for (; node != ROOT; node = parents[node]) {
+				result.append(result.length() == 0 ? "" : String.valueOf(FRAME_SEPARATOR)).append(classNames[node])
+						.append(':').append(lines[node]);
+			}
+			return result.toString();
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * @param node - a node other than the {@link #ROOT}.
+	 * @return the node of the calling context of the given one.
+	 */
+	public static int parent(final int node) {
+
+		LOCK.lock();
+		try {
+			return parents[node];
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * @param node - a node other than the {@link #ROOT}.
+	 * @return the frame of the given node, as "class:line".
+	 */
+	public static String frame(final int node) {
+
+		LOCK.lock();
+		try {
+			return classNames[node] + ":" + lines[node];
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of nodes of the tree, including the root.
+	 */
+	public static int numNodes() {
+
+		LOCK.lock();
+		try {
+			return numNodes;
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	private static int slot(final int parent, final String className, final int line, final int mask) {
+
+		final int hash = (31 * (31 * parent + className.hashCode()) + line) * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * @return the node, {@link #ROOT} if the table has none.
+	 */
+	private static int find(final AtomicIntegerArray slots, final int parent, final String className, final int line) {
+
+		final int mask = slots.length() - 1;
+		for (int slot = slot(parent, className, line, mask);; slot = (slot + 1) & mask) {
+			// the volatile read of the slot makes the arrays and entries of the node visible
+			final int node = slots.get(slot);
+			if (node == ROOT || (parents[node] == parent && lines[node] == line && classNames[node].equals(className))) {
+				return node;
+			}
+		}
+	}
+
+	private static int addNode(final int parent, final String className, final int line) {
+
+		LOCK.lock();
+		try {
+			final int existing = find(table, parent, className, line);
+			if (existing != ROOT) {
+				return existing;
+			}
+			if (numNodes == parents.length) {
+				final int[] grownParents = new int[parents.length * 2];
+				final String[] grownClassNames = new String[classNames.length * 2];
+				final int[] grownLines = new int[lines.length * 2];
+				System.arraycopy(parents, 0, grownParents, 0, numNodes);
+				System.arraycopy(classNames, 0, grownClassNames, 0, numNodes);
+				System.arraycopy(lines, 0, grownLines, 0, numNodes);
+				parents = grownParents;
+				classNames = grownClassNames;
+				lines = grownLines;
+			}
+			final int node = numNodes++;
+			parents[node] = parent;
+			classNames[node] = className;
+			lines[node] = line;
+			AtomicIntegerArray slots = table;
+			if (numNodes * 2 > slots.length()) {
+				slots = new AtomicIntegerArray(slots.length() * 2);
+				for (int i = 1; i < node; i++) {
+					insert(slots, i);
+				}
+			}
+			// publishes the node; its parent, class and line are visible to readers which found it in the table
+			insert(slots, node);
+			table = slots;
+			return node;
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	// called with LOCK held
+	private static void insert(final AtomicIntegerArray slots, final int node) {
+
+		final int mask = slots.length() - 1;
+		int slot = slot(parents[node], classNames[node], lines[node], mask);
+		while (slots.get(slot) != ROOT) {
+			slot = (slot + 1) & mask;
+		}
+		slots.set(slot, node);
+	}
+}
@@ -0,0 +1,171 @@
+package org.uniHD.memory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+
+/**
+ * Occupancy of the heap pools after each GC, as a ring of the last capacity GCs: the end time of the GC (ms since the
+ * start of the JVM), the generation (epoch) it ended in and the bytes used in every pool afterwards. Next to the
+ * per-generation counters of the sites, it tells how much of the growth of the old generation since an epoch is
+ * explained by the objects of each site which were allocated since that epoch and are still alive.
+ *
+ * All methods are synchronized; the timeline is written by the agent thread processing the GC notifications.
+ */
+public final class GcTimeline {
+
+	private static String[] poolNames = new String[0];
+	private static int oldPool = -1;
+	private static long[] times = new long[0];
+	private static long[] generations = new long[0];
+	private static long[][] used = new long[0][0];
+	// total number of recorded GCs; the latest is at (count - 1) % capacity
+	private static long count;
+
+	private GcTimeline() { /* supports static referencing only */ }
+
+	/**
+	 * Sets up an empty timeline.
+	 *
+	 * @param pools - names of the recorded pools.
+	 * @param oldGenerationPool - index of the pool holding the old generation, -1 if there is none.
+	 * @param capacity - number of GCs kept.
+	 */
+	public static synchronized void init(final String[] pools, final int oldGenerationPool, final int capacity) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity of the GC timeline must be positive, got " + capacity);
+		}
+		poolNames = pools.clone();
+		oldPool = oldGenerationPool;
+		times = new long[capacity];
+		generations = new long[capacity];
+		used = new long[pools.length][capacity];
+		count = 0L;
+	}
+
+	/**
+	 * @param endMillis - end time of the GC since the start of the JVM.
+	 * @param generation - the generation the GC ended in.
+	 * @param usedAfter - the bytes used in each pool after the GC, in the order of the pools given to init.
+	 */
+	public static synchronized void record(final long endMillis, final long generation, final long[] usedAfter) {
+
+		if (times.length == 0) {
+			return;
+		}
+		final int index = (int) (count++ % times.length);
+		times[index] = endMillis;
+		generations[index] = generation;
+		for (int pool = 0; pool < used.length; pool++) {
+			used[pool][index] = usedAfter[pool];
+		}
+	}
+
+	/**
+	 * @return the number of GCs recorded so far, including those no longer kept.
+	 */
+	public static synchronized long size() {
+		return count;
+	}
+
+	/**
+	 * Writes the kept GCs, oldest first, as CSV with the columns "Time (ms)", "Generation" and one per pool.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public static synchronized void writeTimeline(final Writer writer) throws IOException {
+
+		writer.write("Time (ms)" + COLUMN_SEPARATOR + "Generation");
+		for (String pool : poolNames) {
+			writer.write(COLUMN_SEPARATOR + pool);
+		}
+		writer.write('\n');
+		for (long i = Math.max(0L, count - times.length); i < count; i++) {
+			final int index = (int) (i % times.length);
+			writer.write(Long.toString(times[index]));
+			writer.write(COLUMN_SEPARATOR);
+			writer.write(Long.toString(generations[index]));
+			for (long[] pool : used) {
+				writer.write(COLUMN_SEPARATOR);
+				writer.write(Long.toString(pool[index]));
+			}
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * Writes how the growth of the old generation since the start of the given epoch is explained by the sites: first
+	 * "oldGenGrowth=bytes", the occupancy after the latest GC minus the one after the last GC before the epoch, then
+	 * "source,class,context,thread,objects,bytes,share" for every site with objects allocated since the epoch which are still
+	 * alive, most bytes first. The bytes of a site are its surviving objects times the mean size of its alive objects,
+	 * the share is their fraction of the growth (may exceed 1 for objects which are still in the young generation).
+	 *
+	 * @param writer
+	 * @param epoch
+	 * @throws IOException
+	 */
+	public static void writeGrowth(final Writer writer, final long epoch) throws IOException {
+
+		final long growth;
+		synchronized (GcTimeline.class) {
+			if (oldPool < 0) {
+				writer.write("error=no old generation pool recorded\n");
+				return;
+			}
+			long before = -1L;
+			for (long i = Math.max(0L, count - times.length); i < count; i++) {
+				final int index = (int) (i % times.length);
+				if (generations[index] < epoch) {
+					before = used[oldPool][index];
+				}
+			}
+			if (before < 0L) {
+				writer.write("error=no old generation GC before epoch " + epoch + " in the timeline\n");
+				return;
+			}
+			growth = used[oldPool][(int) ((count - 1) % times.length)] - before;
+		}
+		writer.write("oldGenGrowth=" + growth + "\n");
+
+		final List<SiteGrowth> survivors = new ArrayList<SiteGrowth>();
+		for (LiveObjectMap.AllocationSiteDetails site : LiveObjectMap.sites()) {
+			final long[] survivor = site.survivingSince(epoch);
+			if (survivor[0] > 0) {
+				survivors.add(new SiteGrowth(site, survivor[0], survivor[1]));
+			}
+		}
+		Collections.sort(survivors);
+		for (SiteGrowth survivor : survivors) {
+			writer.write(survivor.site.toIdentifierColumns() + COLUMN_SEPARATOR + survivor.objects + COLUMN_SEPARATOR
+					+ survivor.bytes + COLUMN_SEPARATOR
+					+ (growth > 0 ? String.format(Locale.ROOT, "%.4f", (double) survivor.bytes / growth) : "") + "\n");
+		}
+	}
+
+	/**
+	 * The objects of a site allocated since an epoch and still alive, ordered by bytes, most first.
+	 */
+	private final static class SiteGrowth implements Comparable<SiteGrowth> {
+		private final LiveObjectMap.AllocationSiteDetails site;
+		private final long objects;
+		private final long bytes;
+
+		private SiteGrowth(final LiveObjectMap.AllocationSiteDetails site, final long objects, final long bytes) {
+			this.site = site;
+			this.objects = objects;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int compareTo(final SiteGrowth other) {
+			return Long.compare(other.bytes, bytes);
+		}
+	}
+}
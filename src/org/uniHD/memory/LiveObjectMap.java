@@ -2,6 +2,8 @@ package org.uniHD.memory;
 
 import com.google.common.flogger.FluentLogger;
 import com.google.common.flogger.LoggerConfig;
+import org.uniHD.memory.util.AgentMetrics;
+import org.uniHD.memory.util.LogHistogram;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -11,7 +13,12 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 
 import static org.uniHD.memory.LiveObjectMap.finalized;
@@ -25,7 +32,7 @@ import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
  * @author Artur Andrzejak
  * @since 01/14/2013
  */
-public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap.AllocationSiteDetails>> {
+public final class LiveObjectMap implements Iterable<Entry<SiteKey, LiveObjectMap.AllocationSiteDetails>> {
 	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 	static {
 		logger.atFine().log("LiveObjectMap created");
@@ -35,10 +42,12 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
          */
 	private final static int GCS_PER_DETECTION = 2;
 	/**
-	 * Keep track of the current generation of garbage collections and of the number of major GCS
+	 * Keep track of the current generation (epoch) of garbage collections and of the number of major GCS.
+	 * The generation is advanced according to the configured epoch policy, see
+	 * org.uniHD.memory.allocation.EpochPolicy; advancing it is a single atomic increment.
 	 */
-	private static long currentGen = 0;
-	private static long majorGCs = 0;
+	private final static AtomicLong CURRENT_GEN = new AtomicLong();
+	private final static AtomicInteger MAJOR_GCS = new AtomicInteger();
 
 	/**
 	 * Some tuning parameters for the hash maps.
@@ -49,6 +58,47 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 	private final static int INITIAL_GENERATIONS_PER_OBJECT_CAPACITY = 10;
 	//Determines if the number of objects that have been deallocated in one generation g should be tracked (per allocation site and generation)
 	private final static boolean TRACK_DEALLOCATIONS = true;
+	//Number of buckets of the per-site lifetime histograms (powers of two of generations resp. milliseconds)
+	private final static int LIFETIME_GENERATION_BUCKETS = 33;
+	private final static int LIFETIME_MILLIS_BUCKETS = 40;
+	//Number of buckets of the per-site histograms of object sizes (bytes) and array lengths
+	private final static int SIZE_BUCKETS = 40;
+	private final static int ARRAY_LENGTH_BUCKETS = 32;
+
+	/**
+	 * Objects of at least this size (bytes) are counted as humongous allocations of their site, 0 if not counted.
+	 */
+	private static volatile long humongousThreshold = 0L;
+
+	/**
+	 * Adaptive sampling: a site is tracked at full rate until its number of alive objects did not reach a new peak for
+	 * stableEpochs epochs; then only every n-th of its objects is tracked (and counted n times), n doubling after every
+	 * further stableEpochs stable epochs up to maxSamplingInterval. A new peak switches the site back to full rate.
+	 * A maxSamplingInterval of 1 tracks every object.
+	 */
+	private static volatile int maxSamplingInterval = 1;
+	private static volatile int stableEpochs = 1;
+
+	/**
+	 * Leak trends: at the start of every epoch, every site adds its number of alive objects to the least-squares
+	 * regression over its last trendWindow epochs and its net growth to an exponentially weighted moving average with
+	 * weight trendAlpha. A trendWindow of 0 switches the trends off.
+	 */
+	private static volatile int trendWindow = 0;
+	private static volatile double trendAlpha = 0.3;
+
+	/**
+	 * Bounded mode: at most maxTrackedSites sites are tracked exactly (those with the most live bytes at the start of an
+	 * epoch); the allocations of all other sites are only estimated by the tailSites sketch, which is null if unbounded.
+	 */
+	private static volatile int maxTrackedSites = Integer.MAX_VALUE;
+	private static volatile SiteSketch tailSites;
+	//sites of the sketch with more bytes than the smallest tracked site, tracked from their next allocation in this epoch
+	private final static Set<SiteKey> PROMOTED_SITES =
+			Collections.newSetFromMap(new ConcurrentHashMap<SiteKey, Boolean>());
+	//summaries of evicted sites with objects still alive, which keep updating them; continued when the site is promoted
+	private final static ConcurrentMap<SiteKey, AllocationSiteDetails> EVICTED_SITES =
+			new ConcurrentHashMap<SiteKey, AllocationSiteDetails>();
 
 	/**
 	 * Static reference to access the collected data from.
@@ -64,8 +114,8 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 	/**
 	 * Summary of allocation information with source,class pairs as keys.
 	 */
-	private final static ConcurrentMap<String, AllocationSiteDetails> ALLOCATIONS =
-			new ConcurrentHashMap<String, AllocationSiteDetails>(INITIAL_ALLOCATIONS_CAPACITY);
+	private final static ConcurrentMap<SiteKey, AllocationSiteDetails> ALLOCATIONS =
+			new ConcurrentHashMap<SiteKey, AllocationSiteDetails>(INITIAL_ALLOCATIONS_CAPACITY);
 	
 	private LiveObjectMap() { /* supports static referencing only */
 	}
@@ -78,23 +128,169 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 	 * @param allocationSite
 	 * @param objectSize
 	 */
-	public final static void allocated (final String allocatedObjectID, final String clazz, final String allocationSite,
+	public final static boolean allocated (final String allocatedObjectID, final String clazz, final String allocationSite,
 																final long objectSize) {
 		
-		final String groupId = toGroupIdentifier(allocationSite, clazz);
+		return allocated(allocatedObjectID, clazz, allocationSite, objectSize, -1);
+	}
+
+	/**
+	 * Method to notify about the introduction of a new live object, its size, its array length and the source code
+	 * location it was instantiated at.
+	 * 
+	 * @param allocatedObjectID
+	 * @param clazz
+	 * @param allocationSite
+	 * @param objectSize
+	 * @param arrayLength - the number of elements if the object is an array, -1 otherwise.
+	 * @return true if the object is tracked, i.e. {@link #finalized(String)} has to be called for it; false if the
+	 * 			allocation was only counted for the size distribution because its site is sampled (adaptive sampling).
+	 */
+	public final static boolean allocated (final String allocatedObjectID, final String clazz, final String allocationSite,
+																final long objectSize, final int arrayLength) {
+		
+		return allocated(allocatedObjectID, clazz, allocationSite, objectSize, arrayLength, CallingContextTree.ROOT);
+	}
+
+	/**
+	 * Method to notify about the introduction of a new live object, its size, its array length and the source code
+	 * location it was instantiated at together with the calling context of that location. Objects of the same
+	 * location and class are summarized per calling context.
+	 * 
+	 * @param allocatedObjectID
+	 * @param clazz
+	 * @param allocationSite
+	 * @param objectSize
+	 * @param arrayLength - the number of elements if the object is an array, -1 otherwise.
+	 * @param context - node of the {@link CallingContextTree}, {@link CallingContextTree#ROOT} for no context.
+	 * @return true if the object is tracked, see {@link #allocated(String, String, String, long, int)}.
+	 */
+	public final static boolean allocated (final String allocatedObjectID, final String clazz, final String allocationSite,
+																final long objectSize, final int arrayLength, final int context) {
+		
+		return track(allocatedObjectID, null, clazz, allocationSite, objectSize, arrayLength, context) != null;
+	}
+
+	/**
+	 * Like {@link #allocated(String, String, String, long, int, int)}, but the id of the object ("class@0xhash", see
+	 * {@link #identifierOf(Object)}) is only built if the object is tracked, i.e. after the sampling decision.
+	 * 
+	 * @param object - the allocated object.
+	 * @param clazz
+	 * @param allocationSite
+	 * @param objectSize
+	 * @param arrayLength - the number of elements if the object is an array, -1 otherwise.
+	 * @param context - node of the {@link CallingContextTree}, {@link CallingContextTree#ROOT} for no context.
+	 * @return the id of the object if it is tracked, which {@link #finalized(String)} has to be called with; null if
+	 * 			the allocation was only counted.
+	 */
+	public final static String allocatedObject (final Object object, final String clazz, final String allocationSite,
+																final long objectSize, final int arrayLength, final int context) {
+		
+		return track(null, object, clazz, allocationSite, objectSize, arrayLength, context);
+	}
+
+	/**
+	 * Method to build a java standard object identifier string from the object's native hash and class.
+	 * 
+	 * @param object
+	 * @return a java standard object identifier.
+	 */
+	public final static String identifierOf(final Object object) {
+		
+		return object.getClass().getName() + "@0x" + Integer.toHexString(System.identityHashCode(object));
+	}
+
+	/**
+	 * @param allocatedObjectID - the id of the object, null to build it from the object once it is tracked.
+	 * @return the id of the object if it is tracked, null otherwise.
+	 */
+	private static String track(final String allocatedObjectID, final Object object, final String clazz,
+			final String allocationSite, final long objectSize, final int arrayLength, final int context) {
+		
+		final int thread = ThreadDimension.current();
+		final SiteKey groupId = new SiteKey(allocationSite, clazz, context, thread);
 		//System.out.println("@" + groupId + " @ " + System.currentTimeMillis());
 		//store object generation temporarily so the generation is not different for ALLOCATIONS and OBJECTS
-		final long objectGen = currentGen;
+		final long objectGen = CURRENT_GEN.get();
+		final long threshold = humongousThreshold;
+		final boolean humongous = threshold > 0 && objectSize >= threshold;
+		// out of budget, no summary or per-object record is created, the allocation is at most counted by its site
+		final boolean countersOnly = MemoryBudget.getLevel() == MemoryBudget.COUNTERS_ONLY;
+
+		AllocationSiteDetails site;
+		int weight = 1;
+		//look up first, so the summary of a known site is not instantiated (and thrown away) for every allocation
+		if ((site = ALLOCATIONS.get(groupId)) == null) {
+			if (countersOnly) {
+				MemoryBudget.allocationUntracked();
+				return null;
+			}
+			final SiteSketch sketch = tailSites;
+			AllocationSiteDetails evicted = null;
+			if (sketch != null) {
+				if (PROMOTED_SITES.remove(groupId)) {
+					// tracked exactly from now on, the estimate is dropped and the summary of its objects still alive
+					// is continued, so that a slowly leaking site does not lose the objects allocated before its eviction
+					sketch.remove(groupId);
+					evicted = EVICTED_SITES.remove(groupId);
+				} else if (ALLOCATIONS.size() >= maxTrackedSites) {
+					// bounded mode: the site is not among the largest ones, only its allocations are estimated
+					sketch.add(groupId, objectSize, 1);
+					return null;
+				}
+			}
+			final AllocationSiteDetails newSite = (evicted != null) ? evicted : new AllocationSiteDetails(allocationSite,
+					clazz, context, thread, objectSize, objectGen, humongous);
+			//putIfAbsent is executed atomically -> no race condition
+			if ((site = ALLOCATIONS.putIfAbsent(groupId, newSite)) == null) {
+				site = newSite;
+				if (evicted == null) {
+					weight = 0;
+				}
+			} else if (evicted != null) {
+				// the site was tracked meanwhile, its objects still alive keep updating the evicted summary
+				EVICTED_SITES.putIfAbsent(groupId, evicted);
+			}
+		}
+		// the size distribution is recorded for every allocation, lock-free and outside of the write lock of the summary
+		site.recordSize(objectSize, arrayLength);
+		if (weight == 0) {
+			// the first object was counted by the constructor
+			weight = 1;
+		} else {
+			if (countersOnly) {
+				// the object is only counted by its site
+				site.addUntrackedObject();
+				MemoryBudget.allocationUntracked();
+				return null;
+			}
+			if ((weight = site.samplingWeight()) == 0) {
+				AgentMetrics.allocationSampledOut();
+				if (site.samplingInterval < MemoryBudget.minSamplingInterval()) {
+					MemoryBudget.allocationSampledOut();
+				}
+				return null;
+			}
+			//the summary is updated under its write lock, snapshots read it optimistically
+			site.addObjectDetails(objectSize, objectGen, humongous, weight);
+		}
 
 		// since there will be only one object with the same ID at any time and finalize() is only called once for it, no 
 		// synchronisation is needed
-		OBJECTS.put(allocatedObjectID, new SingleAllocationDetails(groupId, objectSize, objectGen));
-				
-		AllocationSiteDetails oldEntry;
-		//add object is synchronized and putIfAbsent is executed atomically -> no race condition
-		if ((oldEntry = ALLOCATIONS.putIfAbsent(groupId, new AllocationSiteDetails(objectSize, objectGen))) != null) {
-			oldEntry.addObjectDetails(objectSize, objectGen);
+		final AllocationWindow[] windows = AllocationWindow.open();
+		for (AllocationWindow window : windows) {
+			window.allocated(site, objectSize, weight);
+		}
+		final AllocationWindow tagged = AllocationWindow.tagged();
+		if (tagged != null) {
+			tagged.allocated(site, objectSize, weight);
 		}
+		final String objectID = (allocatedObjectID != null) ? allocatedObjectID : identifierOf(object);
+		OBJECTS.put(objectID, new SingleAllocationDetails(site, objectSize, objectGen, System.nanoTime(), weight,
+				windows, tagged));
+		MemoryBudget.tick();
+		return objectID;
 		// logger.atFine().atMostEvery(100, TimeUnit.MILLISECONDS).log("In allocated: %s and class %s", allocationSite, clazz);
 	}
 	
@@ -116,13 +312,142 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 		if ((entry = OBJECTS.remove(freedObjectID)) != null) {
     		//System.out.println("entry:" + entry);
 			// conflicts because of concurrency may only occur during the manipulation of the allocation size
-			//todo: understand comment above. remove and addObjectDetails are synchronized
+			//removeObjectDetails and addObjectDetails update the summary under its write lock
 
 			// Remove objects data from the statistics
-			ALLOCATIONS.get(entry.groupIdentifier).removeObjectDetails(entry.objectSize, entry.generation);
+			entry.site.removeObjectDetails(entry.objectSize, entry.generation, entry.weight);
+			// the age of the object is recorded lock-free, outside of the write lock of the summary
+			entry.site.recordLifetime(CURRENT_GEN.get() - entry.generation,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.allocationNanos), entry.weight);
+			for (AllocationWindow window : entry.windows) {
+				window.collected(entry.site, entry.objectSize, entry.weight);
+			}
+			if (entry.tagged != null) {
+				entry.tagged.collected(entry.site, entry.objectSize, entry.weight);
+			}
+			for (AllocationWindow window : AllocationWindow.open()) {
+				window.deallocated(entry.site, entry.weight);
+			}
 		}
 	}
 	
+	/**
+	 * Sets the size from which on allocations are counted as humongous, e.g. half of the G1 region size.
+	 * 
+	 * @param bytes - the threshold in bytes, 0 to not count humongous allocations.
+	 */
+	public static void setHumongousThreshold(final long bytes) {
+		
+		humongousThreshold = bytes;
+	}
+
+	/**
+	 * @return the size from which on allocations are counted as humongous, 0 if they are not counted.
+	 */
+	public static long getHumongousThreshold() {
+		
+		return humongousThreshold;
+	}
+
+	/**
+	 * Configures the adaptive sampling of allocation sites.
+	 * 
+	 * @param maxInterval - the largest sampling interval of a site (a power of two), 1 to track every object.
+	 * @param epochs - number of epochs without growth after which the sampling interval of a site is doubled.
+	 */
+	public static void setAdaptiveSampling(final int maxInterval, final int epochs) {
+		
+		if (maxInterval < 1 || Integer.bitCount(maxInterval) != 1 || epochs < 1) {
+			throw new IllegalArgumentException("Sampling interval must be a power of two and epochs positive, got "
+					+ maxInterval + " and " + epochs);
+		}
+		stableEpochs = epochs;
+		maxSamplingInterval = maxInterval;
+	}
+
+	/**
+	 * Switches to bounded mode: only the given number of sites with the most live bytes are tracked exactly, the
+	 * allocations of all other sites are estimated by a {@link SiteSketch} of the given capacity.
+	 * 
+	 * @param maxSites
+	 * @param sketchCapacity
+	 */
+	public static void setBounded(final int maxSites, final int sketchCapacity) {
+		
+		if (maxSites < 1) {
+			throw new IllegalArgumentException("Number of tracked sites must be positive, got " + maxSites);
+		}
+		tailSites = new SiteSketch(sketchCapacity);
+		maxTrackedSites = maxSites;
+	}
+
+	/**
+	 * @return the sketch estimating the allocations of the sites which are not tracked exactly, null if unbounded.
+	 */
+	public static SiteSketch getTailSites() {
+		
+		return tailSites;
+	}
+
+	/**
+	 * Bounded mode: evicts the sites with the fewest live bytes down to maxTrackedSites into the sketch, and promotes
+	 * the sites of the sketch which allocated more bytes than the smallest remaining site for sure. The summaries of
+	 * evicted sites are kept until their last object is deallocated, so that a promoted site continues its summary.
+	 */
+	private static void boundTrackedSites(final SiteSketch sketch, final int maxSites) {
+		
+		PROMOTED_SITES.clear();
+		for (Entry<SiteKey, AllocationSiteDetails> evicted : EVICTED_SITES.entrySet()) {
+			if (evicted.getValue().getLiveObjects() == 0) {
+				EVICTED_SITES.remove(evicted.getKey(), evicted.getValue());
+			}
+		}
+		final int numSites = ALLOCATIONS.size();
+		if (numSites <= maxSites) {
+			// there is room for any site of the sketch, surplus sites are evicted again with the next epoch
+			PROMOTED_SITES.addAll(sketch.above(0L));
+			return;
+		}
+		// the live bytes of the maxSites largest sites, the smallest of them on top; the other sites are not sorted
+		final PriorityQueue<Long> largest = new PriorityQueue<Long>(maxSites);
+		for (AllocationSiteDetails site : ALLOCATIONS.values()) {
+			final long liveBytes = site.getLiveBytes();
+			if (largest.size() < maxSites) {
+				largest.add(liveBytes);
+			} else if (liveBytes > largest.peek()) {
+				largest.poll();
+				largest.add(liveBytes);
+			}
+		}
+		if (largest.size() < maxSites) {
+			// sites were evicted meanwhile
+			return;
+		}
+		// sites with fewer live bytes than the threshold are evicted first, then as many as needed with exactly as many
+		final long threshold = largest.peek();
+		int toEvict = numSites - maxSites;
+		for (int pass = 0; pass < 2 && toEvict > 0; pass++) {
+			for (Entry<SiteKey, AllocationSiteDetails> entry : ALLOCATIONS.entrySet()) {
+				if (toEvict == 0) {
+					break;
+				}
+				final AllocationSiteDetails site = entry.getValue();
+				final long liveBytes = site.getLiveBytes();
+				if ((pass == 0 ? liveBytes < threshold : liveBytes == threshold)
+						&& ALLOCATIONS.remove(entry.getKey(), site)) {
+					// the objects of the site which are still alive keep updating the evicted summary
+					if (site.getLiveObjects() > 0) {
+						EVICTED_SITES.put(entry.getKey(), site);
+					}
+					sketch.add(entry.getKey(), liveBytes, site.getLiveObjects());
+					AgentMetrics.siteEvicted();
+					toEvict--;
+				}
+			}
+		}
+		PROMOTED_SITES.addAll(sketch.above(threshold));
+	}
+
 	/**
 	 * @return the number of Objects currently registered.
 	 */
@@ -139,21 +464,78 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 		return ALLOCATIONS.size();
 	}
 
+	/**
+	 * @return a live view of the summaries of all allocation sites; iterating it allocates no entry per site.
+	 */
+	public static Collection<AllocationSiteDetails> sites() {
+		
+		return ALLOCATIONS.values();
+	}
+
+	/**
+	 * Resets the cumulative counters of all sites: allocated, deallocated, humongous and untracked objects as well as
+	 * the size and lifetime histograms count from now on. The alive objects, their bytes and generations are kept,
+	 * since the objects are still tracked. Every site is reset under its own lock, allocating threads are not stopped.
+	 */
+	public static void resetCounters() {
+		
+		for (AllocationSiteDetails site : ALLOCATIONS.values()) {
+			site.resetCounters();
+		}
+		for (AllocationSiteDetails site : EVICTED_SITES.values()) {
+			site.resetCounters();
+		}
+	}
+
+	/**
+	 * @param maxSites
+	 * @param counter - index of the counter ranking the sites, see {@link AllocationSiteDetails#copyCounters(long[])}.
+	 * @return the given number of sites with the highest values of the counter, highest first.
+	 */
+	public static List<AllocationSiteDetails> top(final int maxSites, final int counter) {
+		
+		final Comparator<Entry<AllocationSiteDetails, Long>> byValue = new Comparator<Entry<AllocationSiteDetails, Long>>() {
+			
+			@Override
+			public int compare(final Entry<AllocationSiteDetails, Long> a, final Entry<AllocationSiteDetails, Long> b) {
+				return a.getValue().compareTo(b.getValue());
+			}
+		};
+		// the lowest of the highest values seen so far is at the head; the values are copied, since the sites change
+		final PriorityQueue<Entry<AllocationSiteDetails, Long>> highest =
+				new PriorityQueue<Entry<AllocationSiteDetails, Long>>(Math.max(1, maxSites), byValue);
+		final long[] counters = new long[AllocationSiteDetails.NUM_COUNTERS];
+		for (AllocationSiteDetails site : ALLOCATIONS.values()) {
+			site.copyCounters(counters);
+			if (highest.size() < maxSites) {
+				highest.add(new AbstractMap.SimpleImmutableEntry<AllocationSiteDetails, Long>(site, counters[counter]));
+			} else if (maxSites > 0 && counters[counter] > highest.peek().getValue()) {
+				highest.poll();
+				highest.add(new AbstractMap.SimpleImmutableEntry<AllocationSiteDetails, Long>(site, counters[counter]));
+			}
+		}
+		final List<AllocationSiteDetails> result = new ArrayList<AllocationSiteDetails>(highest.size());
+		while (!highest.isEmpty()) {
+			result.add(highest.poll().getKey());
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
 
 
 	/**
 	 *	Increments the counter for majorGCs and checks if the detection algorithm should be executed
-	 *  Synchronized keyword is probably not needed, since majorGCs are highly unlikely to be executed right after one another
+	 *  Lock-free: of concurrent callers reaching GCS_PER_DETECTION, only the one resetting the counter runs the detection
 	 */
-	public synchronized static boolean handleMajorGC() {
-		majorGCs++;
-		if (majorGCs >= GCS_PER_DETECTION) {
+	public static boolean handleMajorGC() {
+		final int majorGCs = MAJOR_GCS.incrementAndGet();
+		if (majorGCs >= GCS_PER_DETECTION && MAJOR_GCS.compareAndSet(majorGCs, 0)) {
 			//System.out.println("execute memory leak detection algorithm");
 			//execute memory leak detection algorithm concurrently
 			//new DetectionRunner().start();
 
-			//reset #majorGCs so next memleak-detection is only executed again in GCS_PER_DETECTION gcs
-			majorGCs=0;
+			//#majorGCs was reset above, so next memleak-detection is only executed again in GCS_PER_DETECTION gcs
 		}
 		return false;
 	}
@@ -168,9 +550,9 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 			ArrayList<GenPair> genPairList= new ArrayList<GenPair>();
 
 			//objects with a very low genCount are not relevant, filter them out
-			for (Entry<String, AllocationSiteDetails> allocation : ALLOCATIONS.entrySet()){
+			for (Entry<SiteKey, AllocationSiteDetails> allocation : ALLOCATIONS.entrySet()){
 				if(allocation.getValue().genCount > POTENTIAL_LEAK_THRESHOLD) {
-					genPairList.add(new GenPair(allocation.getKey(), allocation.getValue().genCount));
+					genPairList.add(new GenPair(allocation.getKey().toString(), allocation.getValue().genCount));
 				}
 			}
 			Collections.sort(genPairList);
@@ -193,14 +575,82 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 	 */
 
 	public static long getCurrentGen() {
-		return currentGen;
+		return CURRENT_GEN.get();
 	}
 
 	//increment currentGen and check for possible overflow
-	public synchronized static void incrementCurrentGen() {
-		if(++LiveObjectMap.currentGen == Long.MAX_VALUE){
+	public static void incrementCurrentGen() {
+		if(CURRENT_GEN.incrementAndGet() == Long.MAX_VALUE){
 			handleOverflow();
 		}
+		final SiteSketch sketch = tailSites;
+		if (sketch != null) {
+			boundTrackedSites(sketch, maxTrackedSites);
+		}
+		if (MemoryBudget.getBudgetBytes() > 0) {
+			MemoryBudget.check();
+		}
+		final int maxInterval = maxSamplingInterval;
+		final int window = trendWindow;
+		if (maxInterval > 1 || window > 0) {
+			final int epochs = stableEpochs;
+			final double alpha = trendAlpha;
+			for (AllocationSiteDetails site : ALLOCATIONS.values()) {
+				if (maxInterval > 1) {
+					site.adaptSamplingInterval(maxInterval, epochs);
+				}
+				if (window > 0) {
+					site.updateTrend(window, alpha);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Switches the leak trends of the sites on or off.
+	 * 
+	 * @param window - number of epochs of the least-squares regression, at least 2; 0 to switch the trends off.
+	 * @param alpha - weight of the latest net growth in the moving average, in (0, 1].
+	 */
+	public static void setTrends(final int window, final double alpha) {
+		
+		if (window < 0 || window == 1 || alpha <= 0.0 || alpha > 1.0) {
+			throw new IllegalArgumentException("Trend window must be 0 or at least 2 and alpha in (0, 1], got " + window
+					+ " and " + alpha);
+		}
+		trendAlpha = alpha;
+		trendWindow = window;
+	}
+
+	/**
+	 * @param maxSites
+	 * @param minEpochs
+	 * @return the trends of the given number of sites with the steepest growth (bytes per epoch) among those with at
+	 * 			least the given number of epochs, steepest first.
+	 */
+	public static List<AllocationSiteDetails.Trend> trends(final int maxSites, final int minEpochs) {
+		
+		// the slowest of the steepest trends seen so far is at the head
+		final PriorityQueue<AllocationSiteDetails.Trend> steepest = new PriorityQueue<AllocationSiteDetails.Trend>(
+				Math.max(1, maxSites), Collections.<AllocationSiteDetails.Trend>reverseOrder());
+		for (AllocationSiteDetails site : ALLOCATIONS.values()) {
+			final AllocationSiteDetails.Trend trend = site.trend();
+			if (trend == null || trend.getEpochs() < minEpochs) {
+				continue;
+			}
+			if (steepest.size() < maxSites) {
+				steepest.add(trend);
+			} else if (maxSites > 0 && trend.compareTo(steepest.peek()) < 0) {
+				steepest.poll();
+				steepest.add(trend);
+			}
+		}
+		final List<AllocationSiteDetails.Trend> result = new ArrayList<AllocationSiteDetails.Trend>(steepest.size());
+		while (!steepest.isEmpty()) {
+			result.add(steepest.poll());
+		}
+		Collections.reverse(result);
+		return result;
 	}
 
 	private static void handleOverflow() {
@@ -235,127 +685,671 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 	 * @see java.lang.Iterable#iterator()
 	 */
 	@Override
-	public Iterator<Entry<String, AllocationSiteDetails>> iterator() {
+	public Iterator<Entry<SiteKey, AllocationSiteDetails>> iterator() {
 		
 		return ALLOCATIONS.entrySet().iterator();
 	}
 	
 	/**
-	 * @param sourceLocation
-	 * @param clazz
-	 * @return an unique identifier created from the class and source location.
-	 */
-	private final static String toGroupIdentifier(String sourceLocation, String clazz) {
-		
-		return sourceLocation + COLUMN_SEPARATOR + clazz;
-	}
-	
-	/**
-	 * Details attached to an object allocation. Namely its size and the source code location of its instantiation.
+	 * Details attached to an object allocation. Namely its size, the summary of the source code location of its
+	 * instantiation, its time of birth (generation and System.nanoTime()) and the number of allocations it stands for.
 	 * 
 	 * @author Felix Langner
 	 * @since 01/14/2013
 	 */
 	private final static class SingleAllocationDetails {
 		
-		private final String groupIdentifier;
+		private final AllocationSiteDetails site;
 		private final long objectSize;
 		private final long generation;
+		private final long allocationNanos;
+		private final int weight;
+		// the windows open at the allocation, an array shared by all objects allocated until a window starts or stops
+		private final AllocationWindow[] windows;
+		// the tagged window of the allocating thread, e.g. of the running test, or null
+		private final AllocationWindow tagged;
 		
-		private SingleAllocationDetails(final String groupIdentifier, final long objectSize, long objectGen) {
+		private SingleAllocationDetails(final AllocationSiteDetails site, final long objectSize, long objectGen,
+										final long allocationNanos, final int weight, final AllocationWindow[] windows,
+										final AllocationWindow tagged) {
 			
-			this.groupIdentifier = groupIdentifier;
+			this.site = site;
 			this.objectSize = objectSize;
 			this.generation = objectGen;
+			this.allocationNanos = allocationNanos;
+			this.weight = weight;
+			this.windows = windows;
+			this.tagged = tagged;
 		}
 	}
 
 	
 	/**
-	 * The summary of allocated bytes and number of occurrences  for a certain grouping criterion.
+	 * The summary of allocated bytes and number of occurrences  for a certain grouping criterion. With adaptive
+	 * sampling, all counters are extrapolated: a tracked object counts as many objects as the sampling interval of the
+	 * site was at its allocation.
 	 * 
 	 * @author Felix Langner
 	 * @since 01/14/2013
 	 */
 	public final static class AllocationSiteDetails {
+		
+		/**
+		 * Number of counters copied by {@link #copyCounters(long[])}.
+		 */
+		public final static int NUM_COUNTERS = 8;
+
+		//Number of optimistic reads of a site before a reader takes the read lock
+		private final static int OPTIMISTIC_ATTEMPTS = 8;
+
+		//Serializes the updates of the summary; readers take copies without blocking them, see snapshot()
+		private final StampedLock lock = new StampedLock();
+
+		//What is summarized: objects of one class allocated at one source location in one calling context (by the threads
+		//of one thread dimension, if it is switched on)
+		private final String source;
+		private final String clazz;
+		private final int context;
+		private final int thread;
 
 		//General stats about the allocation site (no temporal information)
 		private long allocatedBytes;
 		private long numberOfFinalAllocations = 1L;
 		private long numberOfAllocations = 1L;
 		private long numberOfDeAllocations = 0L;
+		private long numberOfHumongousAllocations;
+		private long humongousBytes;
+		//allocations counted without a record of the object, because the agent ran out of its memory budget
+		private long numberOfUntrackedAllocations;
+
+		//Adaptive sampling: about every samplingInterval-th allocation is tracked; peak and stable epochs decide on the interval
+		private volatile int samplingInterval = 1;
+		private long peakAlive;
+		private int epochsWithoutGrowth;
+
+		//Leak trend: the alive objects at the start of the last epochs (a ring, created with the first epoch), the number
+		//of epochs seen and the sums of the regression over the window (x = 0 for the oldest epoch in the window)
+		private long[] trendAlive;
+		private long trendEpochs;
+		private double trendSumY;
+		private double trendSumXY;
+		private double trendEwma;
 
 		//Key g is the generation, value stores Info about g
 		// (e.g. #objects allocated in generation g,#deallocated objects allocated in generation g)
-		//a concurrentMap is not needed, since all methods of AllocationSiteDetails are synchronized
+		//a concurrentMap is not needed, since all updates of AllocationSiteDetails hold the write lock; readers copy
+		//the map optimistically and discard the copy if it was updated meanwhile, see snapshot()
 		private Map<Long, GenerationInfo> generations;
 
-		private AllocationSiteDetails(long initialSize, long objectGen) {
+		//Lifetimes of the deallocated objects in generations and in milliseconds; created with the first deallocation
+		//and updated without holding the lock of the summary
+		private volatile LogHistogram lifetimeGenerations;
+		private volatile LogHistogram lifetimeMillis;
+
+		//Distribution of the sizes of all allocated objects and of the lengths of allocated arrays, the latter created
+		//with the first array allocation; both updated without holding the lock of the summary
+		private final LogHistogram sizes = new LogHistogram(SIZE_BUCKETS);
+		private volatile LogHistogram arrayLengths;
+
+		private final static AtomicReferenceFieldUpdater<AllocationSiteDetails, LogHistogram> LIFETIME_GENERATIONS =
+				AtomicReferenceFieldUpdater.newUpdater(AllocationSiteDetails.class, LogHistogram.class, "lifetimeGenerations");
+		private final static AtomicReferenceFieldUpdater<AllocationSiteDetails, LogHistogram> LIFETIME_MILLIS =
+				AtomicReferenceFieldUpdater.newUpdater(AllocationSiteDetails.class, LogHistogram.class, "lifetimeMillis");
+		private final static AtomicReferenceFieldUpdater<AllocationSiteDetails, LogHistogram> ARRAY_LENGTHS =
+				AtomicReferenceFieldUpdater.newUpdater(AllocationSiteDetails.class, LogHistogram.class, "arrayLengths");
+
+		private AllocationSiteDetails(String source, String clazz, int context, int thread, long initialSize,
+									  long objectGen, boolean humongous) {
 			
+			this.source = source;
+			this.clazz = clazz;
+			this.context = context;
+			this.thread = thread;
 			this.allocatedBytes = initialSize;
+			if (humongous) {
+				this.numberOfHumongousAllocations = 1L;
+				this.humongousBytes = initialSize;
+			}
 
 			this.generations 	= new HashMap<Long, GenerationInfo>(INITIAL_GENERATIONS_PER_OBJECT_CAPACITY);
 			this.generations.put(objectGen, new GenerationInfo(1,0,0));
+			AgentMetrics.generationEntryCreated();
 		}
 		
-		private synchronized final void addObjectDetails(final long objectSize, long objectGen) {
+		private final void addObjectDetails(final long objectSize, long objectGen, boolean humongous, int weight) {
 			
-			this.allocatedBytes += objectSize;
-			this.numberOfAllocations++;
-			this.numberOfFinalAllocations++;
+			final long stamp = lock.writeLock();
+			try {
+				this.allocatedBytes += objectSize * weight;
+				this.numberOfAllocations += weight;
+				this.numberOfFinalAllocations += weight;
+				if (humongous) {
+					this.numberOfHumongousAllocations += weight;
+					this.humongousBytes += objectSize * weight;
+				}
 
-			GenerationInfo generationInfo = this.generations.get(objectGen);
-			if( generationInfo != null ){
-				generationInfo.incrementNumAllocatedObjects();
-			} else {
-				//object is first obejcted allocated in generation objectGen
-				//numAllocatedObjects is already 1, since at least one object in this generation has to exist for this constructor to be called
-				this.generations.put(objectGen, new GenerationInfo(1,0,0));
+				GenerationInfo generationInfo = this.generations.get(objectGen);
+				if( generationInfo != null ){
+					generationInfo.incrementNumAllocatedObjects(weight);
+				} else {
+					//object is first obejcted allocated in generation objectGen
+					this.generations.put(objectGen, new GenerationInfo(weight,0,0));
+					AgentMetrics.generationEntryCreated();
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		private final void addUntrackedObject() {
+			
+			final long stamp = lock.writeLock();
+			try {
+				this.numberOfAllocations++;
+				this.numberOfUntrackedAllocations++;
+			} finally {
+				lock.unlockWrite(stamp);
 			}
-
 		}
 		
-		private synchronized final void removeObjectDetails(final long objectSize, long objectGen) {
+		private final void removeObjectDetails(final long objectSize, long objectGen, int weight) {
 			
-			this.allocatedBytes -= objectSize;
-			this.numberOfFinalAllocations--;
-			this.numberOfDeAllocations++;
-
-			//Change Info of object generation
-			GenerationInfo generationInfo = this.generations.get(objectGen);
-			//necessary to check for initialization first, since removeObjectDetails(..) could have been called before addObjectDetails(.)
-			if( generationInfo != null ){
-				generationInfo.incrementNumCollectedAllocatedObjects();
-			} else {
-				this.generations.put(objectGen, new GenerationInfo(0,0,1));
-			}
-
-			if (TRACK_DEALLOCATIONS){
-				//Change Info of current generation
-				generationInfo = this.generations.get(currentGen);
-				//necessary to check for initialization first, since removeObjectDetails(objectGen) could have been called before addObjectDetails(currentGen)
+			final long stamp = lock.writeLock();
+			try {
+				this.allocatedBytes -= objectSize * weight;
+				this.numberOfFinalAllocations -= weight;
+				this.numberOfDeAllocations += weight;
+
+				//Change Info of object generation
+				GenerationInfo generationInfo = this.generations.get(objectGen);
+				//necessary to check for initialization first, since removeObjectDetails(..) could have been called before addObjectDetails(.)
 				if( generationInfo != null ){
-					generationInfo.incrementNumDeallocatedObjects();
+					generationInfo.incrementNumCollectedAllocatedObjects(weight);
 				} else {
-					this.generations.put(currentGen, new GenerationInfo(0,1,0));
+					this.generations.put(objectGen, new GenerationInfo(0,0,weight));
+					AgentMetrics.generationEntryCreated();
+				}
+
+				if (TRACK_DEALLOCATIONS){
+					//Change Info of current generation
+					final long currentGen = CURRENT_GEN.get();
+					generationInfo = this.generations.get(currentGen);
+					//necessary to check for initialization first, since removeObjectDetails(objectGen) could have been called before addObjectDetails(currentGen)
+					if( generationInfo != null ){
+						generationInfo.incrementNumDeallocatedObjects(weight);
+					} else {
+						this.generations.put(currentGen, new GenerationInfo(0,weight,0));
+						AgentMetrics.generationEntryCreated();
+					}
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		private final void resetCounters() {
+			
+			final long stamp = lock.writeLock();
+			try {
+				this.numberOfAllocations = 0L;
+				this.numberOfDeAllocations = 0L;
+				this.numberOfHumongousAllocations = 0L;
+				this.humongousBytes = 0L;
+				this.numberOfUntrackedAllocations = 0L;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+			// the histograms are updated without the lock anyway, a concurrent record may count before or after the reset
+			for (LogHistogram histogram : new LogHistogram[] { sizes, arrayLengths, lifetimeGenerations, lifetimeMillis }) {
+				if (histogram != null) {
+					histogram.reset();
 				}
 			}
 		}
 		
+		/**
+		 * @return 0 if the current allocation is not tracked, otherwise the number of allocations the tracked object
+		 * 			stands for. While the agent sheds load, the interval is at least the one of the {@link MemoryBudget}.
+		 */
+		private final int samplingWeight() {
+			
+			final int interval = Math.max(samplingInterval, MemoryBudget.minSamplingInterval());
+			// a random pick of the allocating thread, so the threads of a hot site do not contend on a shared tick
+			return (interval == 1 || (ThreadLocalRandom.current().nextInt() & (interval - 1)) == 0) ? interval : 0;
+		}
+		
+		/**
+		 * Called at the start of every epoch: doubles the sampling interval after the given number of epochs without
+		 * a new peak of alive objects, and tracks every object again on a new peak. Growth within the sampling error
+		 * (one sampling interval) does not count as new peak.
+		 */
+		private final void adaptSamplingInterval(final int maxInterval, final int epochs) {
+			
+			final long stamp = lock.writeLock();
+			try {
+				if (this.numberOfFinalAllocations > this.peakAlive + this.samplingInterval) {
+					this.peakAlive = this.numberOfFinalAllocations;
+					this.epochsWithoutGrowth = 0;
+					this.samplingInterval = 1;
+				} else if (++this.epochsWithoutGrowth >= epochs && this.samplingInterval < maxInterval) {
+					this.epochsWithoutGrowth = 0;
+					this.samplingInterval <<= 1;
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		/**
+		 * Called at the start of every epoch: adds the number of alive objects to the sliding least-squares regression
+		 * and their growth since the last epoch to the moving average, both in O(1).
+		 */
+		private final void updateTrend(final int window, final double alpha) {
+			
+			final long stamp = lock.writeLock();
+			try {
+				
+				if (this.trendAlive == null || this.trendAlive.length != window) {
+					this.trendAlive = new long[window];
+					this.trendEpochs = 0L;
+					this.trendSumY = 0.0;
+					this.trendSumXY = 0.0;
+					this.trendEwma = 0.0;
+				}
+				final long alive = this.numberOfFinalAllocations;
+				final int n = (int) Math.min(this.trendEpochs, window);
+				final int newest = (int) (this.trendEpochs % window);
+				if (this.trendEpochs > 0) {
+					final long growth = alive - this.trendAlive[(int) ((this.trendEpochs - 1) % window)];
+					this.trendEwma = (this.trendEpochs == 1) ? growth : alpha * growth + (1.0 - alpha) * this.trendEwma;
+				}
+				if (n < window) {
+					this.trendSumXY += (double) n * alive;
+					this.trendSumY += alive;
+				} else {
+					// the oldest value leaves the window, all others move one epoch back
+					final long oldest = this.trendAlive[newest];
+					this.trendSumXY += -(this.trendSumY - oldest) + (double) (window - 1) * alive;
+					this.trendSumY += alive - oldest;
+				}
+				this.trendAlive[newest] = alive;
+				this.trendEpochs++;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * @return the current leak trend of this site, null if it has not seen an epoch with trends switched on.
+		 */
+		public final Trend trend() {
+			
+			final long stamp = lock.readLock();
+			try {
+				
+				if (this.trendAlive == null || this.trendEpochs == 0) {
+					return null;
+				}
+				final double n = Math.min(this.trendEpochs, this.trendAlive.length);
+				final double sumX = n * (n - 1) / 2;
+				final double sumXX = (n - 1) * n * (2 * n - 1) / 6;
+				final double slope = (n < 2) ? 0.0 : (n * this.trendSumXY - sumX * this.trendSumY) / (n * sumXX - sumX * sumX);
+				final double meanSize = (this.numberOfFinalAllocations > 0)
+						? (double) this.allocatedBytes / this.numberOfFinalAllocations : 0.0;
+				return new Trend(this, this.trendEpochs, slope, this.trendEwma, slope * meanSize);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * @return the source location, class, calling context (see {@link CallingContextTree#path(int)}) and thread
+		 * 			dimension (see {@link ThreadDimension}) of the summarized objects as four CSV columns.
+		 */
+		public final String toIdentifierColumns() {
+			return source + COLUMN_SEPARATOR + clazz + COLUMN_SEPARATOR + CallingContextTree.path(context)
+					+ COLUMN_SEPARATOR + ThreadDimension.name(thread);
+		}
+
+		/**
+		 * @return the number of bytes of the alive objects of this site.
+		 */
+		public final long getLiveBytes() {
+			long stamp = lock.tryOptimisticRead();
+			long bytes = allocatedBytes;
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					bytes = allocatedBytes;
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			return bytes;
+		}
+
+		/**
+		 * @return the number of alive objects of this site.
+		 */
+		public final long getLiveObjects() {
+			long stamp = lock.tryOptimisticRead();
+			long objects = numberOfFinalAllocations;
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					objects = numberOfFinalAllocations;
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			return objects;
+		}
+
+		/**
+		 * Copies the counters of this site without allocating: alive, allocated and deallocated objects, bytes of the
+		 * alive objects, humongous objects and bytes, sampling interval and untracked objects, in this order.
+		 * 
+		 * @param counters - an array of at least NUM_COUNTERS elements.
+		 */
+		public final void copyCounters(final long[] counters) {
+			for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+				final long stamp = lock.tryOptimisticRead();
+				readCounters(counters);
+				if (lock.validate(stamp)) {
+					return;
+				}
+			}
+			final long stamp = lock.readLock();
+			try {
+				readCounters(counters);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		private final void readCounters(final long[] counters) {
+			counters[0] = numberOfFinalAllocations;
+			counters[1] = numberOfAllocations;
+			counters[2] = numberOfDeAllocations;
+			counters[3] = allocatedBytes;
+			counters[4] = numberOfHumongousAllocations;
+			counters[5] = humongousBytes;
+			counters[6] = samplingInterval;
+			counters[7] = numberOfUntrackedAllocations;
+		}
+
+		/**
+		 * Takes a consistent copy of the counters and generations of this site without blocking the threads updating
+		 * it: the copy is taken optimistically and retried if the site changed meanwhile; only after OPTIMISTIC_ATTEMPTS
+		 * failed attempts, e.g. for a site allocating in a tight loop, the copy is taken under the read lock.
+		 * 
+		 * @return the copy.
+		 */
+		public final Snapshot snapshot() {
+			for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+				final long stamp = lock.tryOptimisticRead();
+				if (stamp != 0L) {
+					try {
+						final Snapshot snapshot = new Snapshot(this);
+						if (lock.validate(stamp)) {
+							return snapshot;
+						}
+					} catch (RuntimeException e) {
+						// the generations were changed while they were copied, the copy is invalid anyway
+					}
+				}
+			}
+			final long stamp = lock.readLock();
+			try {
+				return new Snapshot(this);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * @param generation
+		 * @return the number of alive objects allocated in the given or a later generation and their estimated bytes
+		 * 			(times the mean size of the alive objects of this site).
+		 */
+		public final long[] survivingSince(final long generation) {
+			final Snapshot snapshot = snapshot();
+			long objects = 0L;
+			for (int i = 0; i < snapshot.generations.length; i++) {
+				if (snapshot.generations[i] >= generation) {
+					objects += snapshot.generationCounts[3 * i] - snapshot.generationCounts[3 * i + 2];
+				}
+			}
+			final long alive = snapshot.counters[0];
+			objects = Math.max(0L, Math.min(objects, alive));
+			final long bytes = (alive > 0) ? snapshot.counters[3] / alive * objects : 0L;
+			return new long[] { objects, bytes };
+		}
+
+		/**
+		 * @return the source location of the summarized objects.
+		 */
+		public final String getSource() {
+			return source;
+		}
+
+		/**
+		 * @return the class of the summarized objects.
+		 */
+		public final String getClazz() {
+			return clazz;
+		}
+
+		/**
+		 * @return the node of the calling context of the summarized objects, see {@link CallingContextTree}.
+		 */
+		public final int getContext() {
+			return context;
+		}
+
+		/**
+		 * @return the thread dimension of the summarized objects, see {@link ThreadDimension}.
+		 */
+		public final int getThread() {
+			return thread;
+		}
+
+		/**
+		 * @return the number of allocations at this site per tracked object.
+		 */
+		public final int getSamplingInterval() {
+			return samplingInterval;
+		}
+
+		private final void recordLifetime(final long generations, final long millis, final int weight) {
+			
+			LogHistogram histogram;
+			if ((histogram = lifetimeGenerations) == null) {
+				LIFETIME_GENERATIONS.compareAndSet(this, null, new LogHistogram(LIFETIME_GENERATION_BUCKETS));
+				histogram = lifetimeGenerations;
+			}
+			histogram.record(generations, weight);
+			if ((histogram = lifetimeMillis) == null) {
+				LIFETIME_MILLIS.compareAndSet(this, null, new LogHistogram(LIFETIME_MILLIS_BUCKETS));
+				histogram = lifetimeMillis;
+			}
+			histogram.record(millis, weight);
+		}
+
+		private final void recordSize(final long objectSize, final int arrayLength) {
+			
+			sizes.record(objectSize);
+			if (arrayLength >= 0) {
+				LogHistogram histogram;
+				if ((histogram = arrayLengths) == null) {
+					ARRAY_LENGTHS.compareAndSet(this, null, new LogHistogram(ARRAY_LENGTH_BUCKETS));
+					histogram = arrayLengths;
+				}
+				histogram.record(arrayLength);
+			}
+		}
+
+		/**
+		 * @return the histogram of the sizes (bytes) of all objects allocated at this site.
+		 */
+		public final LogHistogram getSizes() {
+			return sizes;
+		}
+
+		/**
+		 * @return the histogram of the lengths of arrays allocated at this site, null if no array was allocated.
+		 */
+		public final LogHistogram getArrayLengths() {
+			return arrayLengths;
+		}
+
+		/**
+		 * @return the histogram of lifetimes of deallocated objects in generations, null if none was deallocated yet.
+		 */
+		public final LogHistogram getLifetimeGenerations() {
+			return lifetimeGenerations;
+		}
+
+		/**
+		 * @return the histogram of lifetimes of deallocated objects in ms, null if none was deallocated yet.
+		 */
+		public final LogHistogram getLifetimeMillis() {
+			return lifetimeMillis;
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * @see java.lang.Object#toString()
 		 */
 		@Override
-		public synchronized final String toString() {
-			StringBuffer generationInfoString = new StringBuffer();
-			for (Entry e : generations.entrySet()){
-				generationInfoString.append( e.getKey().toString() + "=" + e.getValue().toString()  + COLUMN_SEPARATOR);
+		public final String toString() {
+			return snapshot().toString();
+		}
+
+		/**
+		 * The leak trend of a site: the slope of the least-squares line through its alive objects over the last epochs
+		 * and the moving average of its net growth, both in objects per epoch, and the slope in bytes per epoch (times
+		 * the mean size of its alive objects). Ordered by the latter, steepest first.
+		 */
+		public final static class Trend implements Comparable<Trend> {
+			
+			private final AllocationSiteDetails site;
+			private final long epochs;
+			private final double slope;
+			private final double ewma;
+			private final double bytesPerEpoch;
+
+			private Trend(final AllocationSiteDetails site, final long epochs, final double slope, final double ewma,
+						  final double bytesPerEpoch) {
+				this.site = site;
+				this.epochs = epochs;
+				this.slope = slope;
+				this.ewma = ewma;
+				this.bytesPerEpoch = bytesPerEpoch;
+			}
+
+			public final AllocationSiteDetails getSite() {
+				return site;
+			}
+
+			public final long getEpochs() {
+				return epochs;
+			}
+
+			public final double getSlope() {
+				return slope;
+			}
+
+			public final double getEwma() {
+				return ewma;
+			}
+
+			public final double getBytesPerEpoch() {
+				return bytesPerEpoch;
+			}
+
+			@Override
+			public int compareTo(final Trend other) {
+				return Double.compare(other.bytesPerEpoch, bytesPerEpoch);
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * @see java.lang.Object#toString()
+			 */
+			@Override
+			public final String toString() {
+				return site.toIdentifierColumns() + COLUMN_SEPARATOR + epochs + COLUMN_SEPARATOR
+						+ String.format(Locale.ROOT, "%.2f%c%.2f%c%.0f", slope, COLUMN_SEPARATOR, ewma, COLUMN_SEPARATOR,
+						bytesPerEpoch);
+			}
+		}
+
+		/**
+		 * A consistent copy of the counters and generations of a site, see {@link AllocationSiteDetails#snapshot()}. The
+		 * histograms are not copied, they are read lock-free when the snapshot is formatted.
+		 */
+		public final static class Snapshot {
+			
+			private final AllocationSiteDetails site;
+			// see copyCounters(long[])
+			private final long[] counters = new long[NUM_COUNTERS];
+			// the generations with their allocated, deallocated and collected objects
+			private final long[] generations;
+			private final int[] generationCounts;
+
+			private Snapshot(final AllocationSiteDetails site) {
+				
+				this.site = site;
+				site.readCounters(counters);
+				final Map<Long, GenerationInfo> siteGenerations = site.generations;
+				final int size = siteGenerations.size();
+				final long[] generations = new long[size];
+				final int[] generationCounts = new int[3 * size];
+				int i = 0;
+				for (Entry<Long, GenerationInfo> e : siteGenerations.entrySet()) {
+					// more entries than the size read before mean a concurrent update, which fails validation
+					generations[i] = e.getKey();
+					generationCounts[3 * i] = e.getValue().numAllocatedObjects;
+					generationCounts[3 * i + 1] = e.getValue().numDeallocatedObjects;
+					generationCounts[3 * i + 2] = e.getValue().numCollectedAllocatedObjects;
+					i++;
+				}
+				this.generations = generations;
+				this.generationCounts = generationCounts;
+			}
+
+			/**
+			 * @return the site the snapshot was taken of.
+			 */
+			public final AllocationSiteDetails getSite() {
+				return site;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * @see java.lang.Object#toString()
+			 */
+			@Override
+			public final String toString() {
+				final StringBuilder result = new StringBuilder(128 + 16 * generations.length);
+				final LogHistogram lifetimeGenerations = site.lifetimeGenerations;
+				final LogHistogram lifetimeMillis = site.lifetimeMillis;
+				final LogHistogram arrayLengths = site.arrayLengths;
+				result.append(counters[0]).append(COLUMN_SEPARATOR).append(counters[1]).append(COLUMN_SEPARATOR)
+						.append(counters[2]).append(COLUMN_SEPARATOR).append(counters[3]).append(COLUMN_SEPARATOR)
+						.append(site.sizes).append(COLUMN_SEPARATOR).append(arrayLengths == null ? "" : arrayLengths)
+						.append(COLUMN_SEPARATOR).append(counters[4]).append(COLUMN_SEPARATOR).append(counters[5])
+						.append(COLUMN_SEPARATOR).append(counters[6]).append(COLUMN_SEPARATOR).append(counters[7])
+						.append(COLUMN_SEPARATOR).append(lifetimeGenerations == null ? "" : lifetimeGenerations)
+						.append(COLUMN_SEPARATOR).append(lifetimeMillis == null ? "" : lifetimeMillis);
+				for (int i = 0; i < generations.length; i++) {
+					result.append(COLUMN_SEPARATOR).append(generations[i]).append('=')
+							.append(generationCounts[3 * i]).append(':').append(generationCounts[3 * i + 1]).append(':')
+							.append(generationCounts[3 * i + 2]);
+				}
+				return result.toString();
 			}
-			//generationInfoString is shortened to remove trailing comma added above
-			return "" + this.numberOfFinalAllocations + COLUMN_SEPARATOR + this.numberOfAllocations +
-			COLUMN_SEPARATOR + this.numberOfDeAllocations + COLUMN_SEPARATOR + this.allocatedBytes + COLUMN_SEPARATOR +
-					generationInfoString.deleteCharAt(generationInfoString.length()-1).toString();
 		}
 	}
 
@@ -378,16 +1372,16 @@ public final class LiveObjectMap implements Iterable<Entry<String, LiveObjectMap
 			numCollectedAllocatedObjects = numCollectedAlloc;
 		}
 
-		public void incrementNumAllocatedObjects() {
-			numAllocatedObjects++;
+		public void incrementNumAllocatedObjects(int by) {
+			numAllocatedObjects += by;
 		}
 
-		public void incrementNumDeallocatedObjects() {
-			numDeallocatedObjects++;
+		public void incrementNumDeallocatedObjects(int by) {
+			numDeallocatedObjects += by;
 		}
 
-		public void incrementNumCollectedAllocatedObjects() {
-			numCollectedAllocatedObjects++;
+		public void incrementNumCollectedAllocatedObjects(int by) {
+			numCollectedAllocatedObjects += by;
 		}
 
 		@Override
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.uniHD.memory.allocation.LiveObjectMonitoringSampler;
+import org.uniHD.memory.leakinjection.MemoryFaultInjector;
 import org.uniHD.memory.util.Configuration;
 import org.uniHD.memory.util.LOMServer;
 
@@ -24,6 +25,8 @@ import com.google.common.flogger.FluentLogger;
 public class MemDefenderAgent {
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
     private static Configuration config;
+    // set once the agent is running, whether loaded at JVM start or attached later
+    private static boolean started = false;
 
     // Setting logging properties for all files
     static {
@@ -40,6 +43,30 @@ public class MemDefenderAgent {
 
     public static void premain(String agentArgs, Instrumentation inst) throws IOException {
         logger.atFine().log("[MD Agent] Entered premain, arguments: %s", agentArgs);
+        start(agentArgs, inst);
+    }
+
+    /**
+     * Entry point when the agent is attached to a running JVM. The classes loaded before are retransformed by the JAI.
+     * Attaching again does not instrument twice: the arguments "disable" resp. "enable" switch the monitoring off or
+     * on, see {@link LiveObjectMonitoringSampler#setEnabled(boolean)}; any other arguments are ignored.
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) throws IOException {
+        logger.atFine().log("[MD Agent] Entered agentmain, arguments: %s", agentArgs);
+        start(agentArgs, inst);
+    }
+
+    private static synchronized void start(String agentArgs, Instrumentation inst) throws IOException {
+        if (started) {
+            final String command = (agentArgs == null) ? "" : agentArgs.trim();
+            if ("enable".equals(command) || "disable".equals(command)) {
+                LiveObjectMonitoringSampler.setEnabled("enable".equals(command));
+            } else {
+                logger.atWarning().log("[MD Agent] Agent is already running, ignoring arguments: %s (expected " +
+                        "'enable' or 'disable')", agentArgs);
+            }
+            return;
+        }
 
         final List<String> args = Arrays.asList(agentArgs == null ? new String[0] : agentArgs.split(","));
         config = new Configuration();
@@ -49,6 +76,11 @@ public class MemDefenderAgent {
             String pathToPropertiesFile = args.size() == 1 ? args.get(0) : "";
             config.setConfigsFromPropertiesFile(pathToPropertiesFile);
         }
+        // only now, so that attaching again with a valid configuration starts an agent whose configuration failed
+        started = true;
+
+        // configure the sites of the MemoryFaultInjector, system properties java.leakStrength.<n> apply as well
+        MemoryFaultInjector.setLeakStrengths(config.injectorLeakStrengths);
 
         // delegate to the JAI
         AllocationInstrumenter.premain(config.JAIArgs, inst);
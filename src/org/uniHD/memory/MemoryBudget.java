@@ -0,0 +1,166 @@
+package org.uniHD.memory;
+
+import com.google.common.flogger.FluentLogger;
+import org.uniHD.memory.util.AgentMetrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Budget for the heap retained by the agent's own structures (per-object records, site summaries, generation entries,
+ * see {@link AgentMetrics#estimatedRetainedBytes()}). On a leaking application the agent must not be the one to cause
+ * the OutOfMemoryError, so it sheds load in two levels when it comes close to the budget:
+ * <ol>
+ * <li>{@link #SAMPLING}: from SAMPLING_FRACTION of the budget on, every site tracks at most every
+ * {@link #getSamplingInterval()}-th object; the tracked ones count for the others as with adaptive sampling.</li>
+ * <li>{@link #COUNTERS_ONLY}: at the budget, no new per-object records are created; the allocations are only counted by
+ * the site summaries (column #UntrackedObjects), without size, generation or lifetime of the objects.</li>
+ * </ol>
+ * The level is lowered again once the records of the deallocated objects have brought the estimate below
+ * RECOVERY_FRACTION of the budget (resp. below SAMPLING_FRACTION for leaving {@link #COUNTERS_ONLY}).
+ *
+ * The estimate is checked every CHECK_INTERVAL tracked allocations and at the start of every epoch. The checks are
+ * serialized by a ReentrantLock instead of a monitor, since they run on the allocating threads, which may be virtual.
+ */
+public final class MemoryBudget {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	public final static int NORMAL = 0;
+	public final static int SAMPLING = 1;
+	public final static int COUNTERS_ONLY = 2;
+
+	private final static double SAMPLING_FRACTION = 0.75;
+	private final static double RECOVERY_FRACTION = 0.5;
+
+	/**
+	 * Check the estimate every CHECK_INTERVAL calls of {@link #tick()} (must be a power of two).
+	 */
+	private final static int CHECK_INTERVAL = 4096;
+
+	private final static ReentrantLock LOCK = new ReentrantLock();
+
+	private static volatile long budgetBytes = 0L;
+	private static volatile int samplingInterval = 1;
+	private static volatile int level = NORMAL;
+
+	// racy on purpose: a lost update only delays a check
+	private static int checkTick;
+
+	private final static LongAdder SHEDDING_EVENTS = new LongAdder();
+	private final static LongAdder SAMPLED_OUT_ALLOCATIONS = new LongAdder();
+	private final static LongAdder UNTRACKED_ALLOCATIONS = new LongAdder();
+
+	private MemoryBudget() { /* supports static referencing only */ }
+
+	/**
+	 * @param bytes - the budget of the agent's structures, 0 for no budget.
+	 * @param interval - the sampling interval of all sites from the level {@link #SAMPLING} on (a power of two).
+	 */
+	public static void setBudget(final long bytes, final int interval) {
+
+		if (bytes < 0 || interval < 1 || Integer.bitCount(interval) != 1) {
+			throw new IllegalArgumentException("Budget must not be negative and the sampling interval a power of two, got "
+					+ bytes + " and " + interval);
+		}
+		samplingInterval = interval;
+		budgetBytes = bytes;
+		check();
+	}
+
+	/**
+	 * Called for every tracked allocation; checks the estimate every CHECK_INTERVAL calls.
+	 */
+	static void tick() {
+
+		if (budgetBytes > 0 && (++checkTick & (CHECK_INTERVAL - 1)) == 0) {
+			check();
+		}
+	}
+
+	/**
+	 * Compares the estimated retained bytes of the agent with the budget and adjusts the shedding level.
+	 */
+	public static void check() {
+
+		LOCK.lock();
+		try {
+			final long budget = budgetBytes;
+			final int current = level;
+			final int next;
+			if (budget <= 0) {
+				next = NORMAL;
+			} else {
+				final long used = AgentMetrics.estimatedRetainedBytes();
+				if (used >= budget) {
+					next = COUNTERS_ONLY;
+				} else if (used >= budget * SAMPLING_FRACTION) {
+					next = (current == COUNTERS_ONLY) ? COUNTERS_ONLY : SAMPLING;
+				} else if (used >= budget * RECOVERY_FRACTION) {
+					next = Math.min(current, SAMPLING);
+				} else {
+					next = NORMAL;
+				}
+				if (next != current) {
+					logger.atWarning().log("Agent uses about %d of %d budgeted bytes, shedding level %d -> %d", used, budget,
+							current, next);
+				}
+			}
+			if (next > current) {
+				SHEDDING_EVENTS.increment();
+			}
+			level = next;
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * @return the current shedding level, {@link #NORMAL}, {@link #SAMPLING} or {@link #COUNTERS_ONLY}.
+	 */
+	public static int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the sampling interval every site has at least in the current level, 1 if it does not shed load.
+	 */
+	static int minSamplingInterval() {
+		return (level == NORMAL) ? 1 : samplingInterval;
+	}
+
+	static void allocationSampledOut() {
+		SAMPLED_OUT_ALLOCATIONS.increment();
+	}
+
+	static void allocationUntracked() {
+		UNTRACKED_ALLOCATIONS.increment();
+	}
+
+	/**
+	 * @return the budget in bytes, 0 if there is none.
+	 */
+	public static long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	/**
+	 * @return how often the shedding level was raised.
+	 */
+	public static long getSheddingEvents() {
+		return SHEDDING_EVENTS.sum();
+	}
+
+	/**
+	 * @return the number of allocations not tracked because of the sampling of the level {@link #SAMPLING}.
+	 */
+	public static long getSampledOutAllocations() {
+		return SAMPLED_OUT_ALLOCATIONS.sum();
+	}
+
+	/**
+	 * @return the number of allocations only counted by their site in the level {@link #COUNTERS_ONLY}.
+	 */
+	public static long getUntrackedAllocations() {
+		return UNTRACKED_ALLOCATIONS.sum();
+	}
+}
@@ -0,0 +1,90 @@
+package org.uniHD.memory;
+
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+
+/**
+ * Identifies an allocation site: source location, class, calling context and thread dimension. A key is created for
+ * every allocation to look up its site, so it only references the strings it is given and combines their (cached)
+ * hash codes with the ints; no string is built.
+ */
+public final class SiteKey {
+
+	private final String source;
+	private final String clazz;
+	private final int context;
+	private final int thread;
+	private final int hash;
+
+	/**
+	 * @param source
+	 * @param clazz
+	 * @param context - node of the {@link CallingContextTree}, {@link CallingContextTree#ROOT} for no context.
+	 * @param thread - the {@link ThreadDimension} of the site, {@link ThreadDimension#NONE} if it is switched off.
+	 */
+	public SiteKey(final String source, final String clazz, final int context, final int thread) {
+
+		this.source = source;
+		this.clazz = clazz;
+		this.context = context;
+		this.thread = thread;
+		this.hash = 31 * (31 * (31 * source.hashCode() + clazz.hashCode()) + context) + thread;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getClazz() {
+		return clazz;
+	}
+
+	public int getContext() {
+		return context;
+	}
+
+	public int getThread() {
+		return thread;
+	}
+
+	/**
+	 * @return the source location, class, calling context and thread dimension as four CSV columns, see
+	 * 			{@link LiveObjectMap.AllocationSiteDetails#toIdentifierColumns()}.
+	 */
+	public String toIdentifierColumns() {
+
+		return source + COLUMN_SEPARATOR + clazz + COLUMN_SEPARATOR + CallingContextTree.path(context)
+				+ COLUMN_SEPARATOR + ThreadDimension.name(thread);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof SiteKey)) {
+			return false;
+		}
+		final SiteKey key = (SiteKey) other;
+		return hash == key.hash && context == key.context && thread == key.thread && source.equals(key.source)
+				&& clazz.equals(key.clazz);
+	}
+
+	/**
+	 * @return "source,class[,context[,thread]]", the context and thread given as ids if they are set.
+	 */
+	@Override
+	public String toString() {
+
+		final String identifier = source + COLUMN_SEPARATOR + clazz;
+		if (thread != ThreadDimension.NONE) {
+			return identifier + COLUMN_SEPARATOR + context + COLUMN_SEPARATOR + thread;
+		}
+		return (context == CallingContextTree.ROOT) ? identifier : identifier + COLUMN_SEPARATOR + context;
+	}
+}
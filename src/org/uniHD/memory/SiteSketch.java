@@ -0,0 +1,311 @@
+package org.uniHD.memory;
+
+import org.uniHD.memory.util.Stripes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Space-Saving sketch of the allocation sites which are not tracked exactly in bounded mode. It monitors a fixed
+ * number of sites with the bytes and objects added for them: those allocated while the site is not tracked, and those
+ * still alive when it was evicted from tracking. A new site replaces the monitored site with the fewest bytes and
+ * inherits its counts as (over-)estimation error. For every monitored site, the true number of added bytes lies in
+ * [bytes - error, bytes], and any site not monitored added at most {@link #minBytes()} bytes. Since objects are only
+ * added, never removed, the estimates are upper bounds of the live bytes and objects of a site as well.
+ *
+ * The untracked allocations of all threads update the sketch, so it is split into stripes by the hash of the site
+ * key, each an independent sketch of its share of the capacity guarded by its own ReentrantLock (rather than a
+ * monitor, so a virtual thread waiting for it does not pin its carrier thread). The bounds hold per stripe; the
+ * smallest estimate of the sketch is the largest one of the stripes. Within a stripe, the sites are kept in an indexed
+ * binary min-heap by bytes, so an update costs O(log capacity).
+ */
+public final class SiteSketch {
+
+	// a stripe which monitors few sites loses accuracy, so small sketches are split less or not at all
+	private final static int MIN_STRIPE_CAPACITY = 64;
+
+	private final Stripe[] stripes;
+
+	public SiteSketch(final int capacity) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity of the sketch must be positive, got " + capacity);
+		}
+		final int numStripes = Math.min(Stripes.forProcessors(Runtime.getRuntime().availableProcessors()),
+				Integer.highestOneBit(Math.max(1, capacity / MIN_STRIPE_CAPACITY)));
+		this.stripes = new Stripe[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = new Stripe(capacity / numStripes + (i < capacity % numStripes ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Counts allocated (or alive) objects of a site.
+	 *
+	 * @param key - the key of the site.
+	 * @param bytes
+	 * @param objects
+	 */
+	public void add(final SiteKey key, final long bytes, final long objects) {
+
+		stripe(key).add(key, bytes, objects);
+	}
+
+	/**
+	 * Removes a site, e.g. because it is tracked exactly from now on.
+	 *
+	 * @param key
+	 */
+	public void remove(final SiteKey key) {
+
+		stripe(key).remove(key);
+	}
+
+	/**
+	 * @param lowerBound
+	 * @return the keys of the monitored sites to which more than the given number of bytes were added for sure.
+	 */
+	public List<SiteKey> above(final long lowerBound) {
+
+		final List<SiteKey> result = new ArrayList<SiteKey>();
+		for (Stripe stripe : stripes) {
+			stripe.above(lowerBound, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the largest number of bytes which may have been added to a site which is not monitored.
+	 */
+	public long minBytes() {
+
+		long result = 0L;
+		for (Stripe stripe : stripes) {
+			result = Math.max(result, stripe.minBytes());
+		}
+		return result;
+	}
+
+	public int size() {
+
+		int result = 0;
+		for (Stripe stripe : stripes) {
+			result += stripe.size();
+		}
+		return result;
+	}
+
+	/**
+	 * @return a copy of the monitored sites, each stripe consistent in itself.
+	 */
+	public List<Entry> entries() {
+
+		final List<Entry> result = new ArrayList<Entry>(size());
+		for (Stripe stripe : stripes) {
+			stripe.entries(result);
+		}
+		return result;
+	}
+
+	private Stripe stripe(final SiteKey key) {
+
+		final int hash = key.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+	}
+
+	/**
+	 * An independent Space-Saving sketch of the sites whose keys hash to it.
+	 */
+	private final static class Stripe {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Entry[] heap;
+		private final Map<SiteKey, Entry> entries;
+		private int size;
+
+		private Stripe(final int capacity) {
+
+			this.heap = new Entry[capacity];
+			this.entries = new HashMap<SiteKey, Entry>(capacity * 2);
+		}
+
+		private void add(final SiteKey key, final long bytes, final long objects) {
+
+			lock.lock();
+			try {
+				Entry entry = entries.get(key);
+				if (entry == null) {
+					if (size < heap.length) {
+						entry = new Entry(key, 0L, 0L);
+						entry.index = size;
+						heap[size++] = entry;
+					} else {
+						// replace the site with the fewest bytes, which is the upper bound of the bytes of the new one so far
+						final Entry min = heap[0];
+						entries.remove(min.key);
+						entry = new Entry(key, min.bytes, min.objects);
+						entry.index = 0;
+						heap[0] = entry;
+					}
+					entries.put(key, entry);
+				}
+				entry.bytes += bytes;
+				entry.objects += objects;
+				siftDown(entry.index);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void remove(final SiteKey key) {
+
+			lock.lock();
+			try {
+				final Entry entry = entries.remove(key);
+				if (entry == null) {
+					return;
+				}
+				final Entry last = heap[--size];
+				heap[size] = null;
+				if (last != entry) {
+					last.index = entry.index;
+					heap[entry.index] = last;
+					siftDown(last.index);
+					siftUp(last.index);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void above(final long lowerBound, final List<SiteKey> result) {
+
+			lock.lock();
+			try {
+				for (int i = 0; i < size; i++) {
+					if (heap[i].bytes - heap[i].error > lowerBound) {
+						result.add(heap[i].key);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private long minBytes() {
+
+			lock.lock();
+			try {
+				return (size < heap.length) ? 0L : heap[0].bytes;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private int size() {
+
+			lock.lock();
+			try {
+				return size;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void entries(final List<Entry> result) {
+
+			lock.lock();
+			try {
+				for (int i = 0; i < size; i++) {
+					final Entry entry = heap[i];
+					final Entry copy = new Entry(entry.key, entry.error, entry.objectError);
+					copy.bytes = entry.bytes;
+					copy.objects = entry.objects;
+					result.add(copy);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void siftDown(int index) {
+
+			final Entry entry = heap[index];
+			for (int child = 2 * index + 1; child < size; child = 2 * index + 1) {
+				if (child + 1 < size && heap[child + 1].bytes < heap[child].bytes) {
+					child++;
+				}
+				if (heap[child].bytes >= entry.bytes) {
+					break;
+				}
+				heap[index] = heap[child];
+				heap[index].index = index;
+				index = child;
+			}
+			heap[index] = entry;
+			entry.index = index;
+		}
+
+		private void siftUp(int index) {
+
+			final Entry entry = heap[index];
+			while (index > 0 && heap[(index - 1) / 2].bytes > entry.bytes) {
+				heap[index] = heap[(index - 1) / 2];
+				heap[index].index = index;
+				index = (index - 1) / 2;
+			}
+			heap[index] = entry;
+			entry.index = index;
+		}
+	}
+
+	/**
+	 * A monitored site with its estimated bytes and objects (upper bounds) and the maximal error of them.
+	 */
+	public final static class Entry {
+
+		private final SiteKey key;
+		private final long error;
+		private final long objectError;
+		private long bytes;
+		private long objects;
+		private int index;
+
+		private Entry(final SiteKey key, final long error, final long objectError) {
+
+			this.key = key;
+			this.error = error;
+			this.objectError = objectError;
+			this.bytes = error;
+			this.objects = objectError;
+		}
+
+		/**
+		 * @return the source location, class, calling context and thread dimension of the site as four CSV columns, see
+		 * 			{@link LiveObjectMap.AllocationSiteDetails#toIdentifierColumns()}.
+		 */
+		public String toIdentifierColumns() {
+
+			return key.toIdentifierColumns();
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getObjects() {
+			return objects;
+		}
+
+		public long getError() {
+			return error;
+		}
+
+		public long getObjectError() {
+			return objectError;
+		}
+	}
+}
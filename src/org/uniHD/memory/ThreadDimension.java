@@ -0,0 +1,157 @@
+package org.uniHD.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+
+/**
+ * Optional dimension of the allocation sites: the thread pool the allocating thread belongs to, e.g. the request, batch
+ * and cache refresh executors of a service, so that a site leaking in one pool is told apart from the same site in
+ * another. A thread is assigned either its thread group ({@link #GROUP}) or the label of the first of the configured
+ * name patterns its name matches ({@link #PATTERN}, {@link #OTHER} if none does).
+ *
+ * The dimension of a thread is resolved with its first tracked allocation and cached in a thread local as an int, the
+ * id of the interned name; renaming the thread afterwards does not move it to another pool. Ids are only added, never
+ * removed; {@link #NONE} (the empty name) is the dimension of all threads while the dimension is switched off.
+ */
+public final class ThreadDimension {
+
+	public final static int NONE = 0;
+	public final static String OFF = "none";
+	public final static String GROUP = "group";
+	public final static String PATTERN = "pattern";
+	/**
+	 * Label of the threads matching none of the patterns.
+	 */
+	public final static String OTHER = "other";
+
+	private final static int INITIAL_CAPACITY = 64;
+
+	private final static ReentrantLock LOCK = new ReentrantLock();
+	private final static ConcurrentMap<String, Integer> IDS = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] names = new String[INITIAL_CAPACITY];
+	private static int numNames = 1;
+	static {
+		names[NONE] = "";
+		IDS.put("", NONE);
+	}
+
+	private static volatile String mode = OFF;
+	// labels and patterns of PATTERN, replaced as a whole
+	private static volatile String[] labels = new String[0];
+	private static volatile Pattern[] patterns = new Pattern[0];
+
+	private final static ThreadLocal<Integer> CURRENT = new ThreadLocal<Integer>() {
+
+		@Override
+		protected Integer initialValue() {
+			return resolve(Thread.currentThread());
+		}
+	};
+
+	private ThreadDimension() { /* supports static referencing only */ }
+
+	/**
+	 * Switches the dimension on or off. Threads which allocated before keep the dimension resolved then.
+	 *
+	 * @param dimension - {@link #OFF}, {@link #GROUP} or {@link #PATTERN}.
+	 * @param labeledPatterns - for {@link #PATTERN}: "label:regex" pairs separated by ',', e.g.
+	 * 			"request:http-nio-.*,batch:batch-.*"; a pattern without label is labeled with itself.
+	 */
+	public static void configure(final String dimension, final String labeledPatterns) {
+
+		if (!dimension.equals(OFF) && !dimension.equals(GROUP) && !dimension.equals(PATTERN)) {
+			throw new IllegalArgumentException("Thread dimension must be '" + OFF + "', '" + GROUP + "' or '" + PATTERN
+					+ "', got '" + dimension + "'");
+		}
+		final List<String> newLabels = new ArrayList<String>();
+		final List<Pattern> newPatterns = new ArrayList<Pattern>();
+		for (String labeledPattern : labeledPatterns.split(",")) {
+			if (labeledPattern.trim().isEmpty()) {
+				continue;
+			}
+			final int separator = labeledPattern.indexOf(':');
+			final String regex = labeledPattern.substring(separator + 1).trim();
+			newLabels.add((separator > 0) ? labeledPattern.substring(0, separator).trim() : regex);
+			newPatterns.add(Pattern.compile(regex));
+		}
+		labels = newLabels.toArray(new String[newLabels.size()]);
+		patterns = newPatterns.toArray(new Pattern[newPatterns.size()]);
+		// interned, so current() compares references
+		mode = dimension.equals(OFF) ? OFF : dimension.equals(GROUP) ? GROUP : PATTERN;
+	}
+
+	/**
+	 * @return the dimension of the current thread, {@link #NONE} while the dimension is switched off.
+	 */
+	public static int current() {
+
+		return (mode == OFF) ? NONE : CURRENT.get();
+	}
+
+	/**
+	 * @param id
+	 * @return the name of the dimension, the empty string for {@link #NONE}.
+	 */
+	public static String name(final int id) {
+
+		return names[id];
+	}
+
+	private static int resolve(final Thread thread) {
+
+		final String currentMode = mode;
+		String name;
+		if (currentMode.equals(GROUP)) {
+			final ThreadGroup group = thread.getThreadGroup();
+			name = (group != null) ? group.getName() : OTHER;
+		} else if (currentMode.equals(PATTERN)) {
+			name = OTHER;
+			final String[] currentLabels = labels;
+			final Pattern[] currentPatterns = patterns;
+			for (int i = 0; i < currentPatterns.length && i < currentLabels.length; i++) {
+				if (currentPatterns[i].matcher(thread.getName()).matches()) {
+					name = currentLabels[i];
+					break;
+				}
+			}
+		} else {
+			return NONE;
+		}
+		// the name becomes a CSV column
+		return intern(name.replace(COLUMN_SEPARATOR, ';'));
+	}
+
+	private static int intern(final String name) {
+
+		final Integer id = IDS.get(name);
+		if (id != null) {
+			return id;
+		}
+		LOCK.lock();
+		try {
+			Integer known = IDS.get(name);
+			if (known == null) {
+				String[] current = names;
+				if (numNames == current.length) {
+					final String[] grown = new String[2 * current.length];
+					System.arraycopy(current, 0, grown, 0, current.length);
+					current = grown;
+				}
+				current[numNames] = name;
+				// publish the array before the id, so a reader of the id finds the name
+				names = current;
+				known = numNames++;
+				IDS.put(name, known);
+			}
+			return known;
+		} finally {
+			LOCK.unlock();
+		}
+	}
+}
@@ -1,12 +1,52 @@
 package org.uniHD.memory.adapter;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 import org.junit.runner.Description;
+import org.junit.runner.Result;
 import org.junit.runner.notification.RunListener;
+import org.uniHD.memory.AllocationWindow;
 
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+import static org.uniHD.memory.util.Constants.FILE_EXTENSION;
+import static org.uniHD.memory.util.Constants.GC_WAITING_TIME;
+import static org.uniHD.memory.util.Constants.TESTS_FILE_SUFFIX;
 import static org.uniHD.memory.util.LiveObjectDumpGenerator.dumpToFile;
 
+/**
+ * Attributes the allocations to the tests: while a test runs, its thread and the threads it starts are tagged with a
+ * window of the test (see {@link AllocationWindow#startTagged(String)}), which counts their allocations per site and
+ * how many of them are still alive. When the run has finished, a GC is run and the sites with surviving objects of
+ * each test are written to one report, {@code <fileName>.tests.csv}; tests which left no objects alive are not listed.
+ * The listener holds the window of a finished test only weakly: the window stays reachable through the objects of
+ * the test which are still alive, so the windows of tests which left nothing behind are freed during the run.
+ */
 public class LOMRunListener extends RunListener {
 	
+	private final static String DEFAULT_FILE_NAME = "memDefender";
+	
+	private final String fileName;
+	// tests may be run concurrently by parallel runners
+	private final Queue<WeakReference<AllocationWindow>> tests = new ConcurrentLinkedQueue<WeakReference<AllocationWindow>>();
+	
+	public LOMRunListener() {
+		
+		this(DEFAULT_FILE_NAME);
+	}
+	
+	/**
+	 * @param fileName - of the report of the surviving objects per test, without suffix.
+	 */
+	public LOMRunListener(final String fileName) {
+		
+		this.fileName = fileName;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see org.junit.runner.notification.RunListener#testStarted(org.junit.runner.Description)
@@ -18,5 +58,70 @@ public class LOMRunListener extends RunListener {
 				   description.getDisplayName() + "-" + description.getMethodName() + "-started");
 		super.testRunStarted(description);
 	}
-
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.junit.runner.notification.RunListener#testStarted(org.junit.runner.Description)
+	 */
+	@Override
+	public void testStarted(Description description) throws Exception {
+		
+		tests.add(new WeakReference<AllocationWindow>(
+				AllocationWindow.startTagged(description.getDisplayName().replace(COLUMN_SEPARATOR, ';'))));
+		super.testStarted(description);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.junit.runner.notification.RunListener#testFinished(org.junit.runner.Description)
+	 */
+	@Override
+	public void testFinished(Description description) throws Exception {
+		
+		AllocationWindow.stopTagged();
+		super.testFinished(description);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.junit.runner.notification.RunListener#testRunFinished(org.junit.runner.Result)
+	 */
+	@Override
+	public void testRunFinished(Result result) throws Exception {
+		
+		// collect the objects the tests left behind, so that only the ones still reachable count as surviving
+		System.gc();
+		Thread.sleep(GC_WAITING_TIME);
+		writeReport();
+		super.testRunFinished(result);
+	}
+	
+	/**
+	 * Writes the sites with surviving objects of every test, one line per test and site (see
+	 * {@link AllocationWindow#HEADER}), the tests in the order they were started.
+	 * 
+	 * @return the number of tests with surviving objects.
+	 * @throws IOException
+	 */
+	public int writeReport() throws IOException {
+		
+		int leaking = 0;
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(fileName + TESTS_FILE_SUFFIX + FILE_EXTENSION));
+		try {
+			
+			writer.write(AllocationWindow.HEADER);
+			writer.newLine();
+			for (WeakReference<AllocationWindow> reference : tests) {
+				// cleared once all objects of the test were deallocated
+				final AllocationWindow test = reference.get();
+				if (test != null && test.writeSurvivors(writer) > 0) {
+					leaking++;
+				}
+			}
+		} finally {
+			
+			writer.close();
+		}
+		return leaking;
+	}
 }
@@ -10,7 +10,7 @@ public class SingleJUnitTestRunner {
 	public static void main(String... args) throws Exception, NoClassDefFoundError {
 	    String classAndMethod = args[0];
     	JUnitCore core= new JUnitCore();
-    	core.addListener(new LOMRunListener());
+    	core.addListener(new LOMRunListener(classAndMethod));
 		LiveObjectDumpGenerator.dumpToFile(classAndMethod, "beforeRun");    		
 		core.run(Class.forName(classAndMethod));
 		LiveObjectDumpGenerator.dumpToFile(classAndMethod, "afterRun");
@@ -0,0 +1,178 @@
+package org.uniHD.memory.allocation;
+
+import com.google.common.flogger.FluentLogger;
+import org.uniHD.memory.util.Configuration;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.uniHD.memory.LiveObjectMap.incrementCurrentGen;
+
+/**
+ * Decides when the generation (epoch) of the {@link org.uniHD.memory.LiveObjectMap} advances. Advancing on every GC
+ * of every collector turns generations into noise with collectors running hundreds of young collections a minute, so
+ * the epoch can also advance every N young GCs, on old-generation GCs only, or on a fixed wall-clock interval.
+ */
+final class EpochPolicy {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	/**
+	 * Names of collectors which only collect the old generation (or the whole heap), for collectors which do not
+	 * report "end of major GC" as action.
+	 */
+	private final static Set<String> OLD_GENERATION_COLLECTORS = new HashSet<String>(Arrays.asList(
+			"MarkSweepCompact", "PS MarkSweep", "ConcurrentMarkSweep", "G1 Old Generation", "ZGC", "ZGC Cycles",
+			"ZGC Major Cycles", "Shenandoah Cycles"));
+	/**
+	 * Names of young and pause collectors which manage the old generation pool as well, e.g. for G1's mixed
+	 * collections, so that their pools do not tell them apart.
+	 */
+	private final static Set<String> YOUNG_GENERATION_COLLECTORS = new HashSet<String>(Arrays.asList(
+			"Copy", "PS Scavenge", "ParNew", "G1 Young Generation", "G1 Concurrent GC", "ZGC Pauses",
+			"ZGC Minor Cycles", "ZGC Minor Pauses", "ZGC Major Pauses", "Shenandoah Pauses"));
+
+	enum Kind {
+		/** advance on every GC of every collector (the original behaviour) */
+		EVERYGC,
+		/** advance once every N young GCs, and on every old-generation GC */
+		YOUNGGCS,
+		/** advance on old-generation GCs only */
+		OLDGC,
+		/** advance on a fixed wall-clock interval, independent of the GCs */
+		INTERVAL
+	}
+
+	private final Kind kind;
+	private final int youngGcsPerEpoch;
+	private final long intervalMillis;
+	private final AtomicInteger youngGcs = new AtomicInteger();
+	// the known old-generation collectors and those of this JVM which collect all heap pools
+	private final Set<String> oldGenerationCollectors;
+
+	EpochPolicy(final Configuration config) {
+		this.kind = Kind.valueOf(config.epochPolicy.trim().toUpperCase());
+		this.youngGcsPerEpoch = config.epochYoungGcs;
+		this.intervalMillis = config.epochIntervalMs;
+		if (kind == Kind.YOUNGGCS && youngGcsPerEpoch < 1 || kind == Kind.INTERVAL && intervalMillis < 1) {
+			throw new IllegalArgumentException("Epoch policy " + kind + " needs a positive number of GCs or interval");
+		}
+		this.oldGenerationCollectors = oldGenerationCollectors(ManagementFactory.getGarbageCollectorMXBeans(),
+				ManagementFactory.getMemoryPoolMXBeans());
+		if (kind == Kind.OLDGC) {
+			boolean found = false;
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+				found |= oldGenerationCollectors.contains(collector.getName());
+			}
+			if (!found) {
+				logger.atWarning().log("No old-generation collector found, the epoch only advances on GCs reported "
+						+ "as major GCs");
+			}
+		}
+	}
+
+	/**
+	 * Collectors not known by name count as old-generation collectors if they manage every heap pool, e.g. the
+	 * single heap pool of a non-generational collector.
+	 *
+	 * @param collectors - the collectors of the JVM.
+	 * @param pools - the memory pools of the JVM.
+	 * @return the names of the old-generation collectors.
+	 */
+	static Set<String> oldGenerationCollectors(final List<GarbageCollectorMXBean> collectors,
+			final List<MemoryPoolMXBean> pools) {
+		final List<String> heapPools = new ArrayList<String>();
+		for (MemoryPoolMXBean pool : pools) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool.getName());
+			}
+		}
+		final Set<String> result = new HashSet<String>(OLD_GENERATION_COLLECTORS);
+		for (GarbageCollectorMXBean collector : collectors) {
+			final String name = collector.getName();
+			if (!OLD_GENERATION_COLLECTORS.contains(name) && !YOUNG_GENERATION_COLLECTORS.contains(name)
+					&& !heapPools.isEmpty() && Arrays.asList(collector.getMemoryPoolNames()).containsAll(heapPools)) {
+				result.add(name);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Starts the timer thread of the {@link Kind#INTERVAL} policy; a no-op for the other policies.
+	 */
+	void start() {
+		if (kind != Kind.INTERVAL) {
+			return;
+		}
+		final Thread timer = new Thread(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				long next = System.currentTimeMillis() + intervalMillis;
+				try {
+					for (;;) {
+						Thread.sleep(Math.max(0L, next - System.currentTimeMillis()));
+						incrementCurrentGen();
+						next += intervalMillis;
+					}
+				} catch (InterruptedException e) {
+					logger.atWarning().log("Epoch timer stopped");
+				}
+			}
+		}, "MemDefender-EpochTimer");
+		timer.setDaemon(true);
+		timer.start();
+		logger.atFine().log("Epoch advances every %d ms", intervalMillis);
+	}
+
+	/**
+	 * Called for the end of every garbage collection.
+	 *
+	 * @param collector - name of the garbage collector.
+	 * @param action - GC action as reported by the GC notification, e.g. "end of minor GC".
+	 */
+	void onGc(final String collector, final String action) {
+		switch (kind) {
+			case EVERYGC:
+				incrementCurrentGen();
+				break;
+			case YOUNGGCS:
+				if (isOldGenerationGc(collector, action)) {
+					youngGcs.set(0);
+					incrementCurrentGen();
+				} else if (youngGcs.incrementAndGet() >= youngGcsPerEpoch) {
+					youngGcs.set(0);
+					incrementCurrentGen();
+				}
+				break;
+			case OLDGC:
+				if (isOldGenerationGc(collector, action)) {
+					incrementCurrentGen();
+				}
+				break;
+			default:
+				// the interval policy does not depend on GCs
+		}
+	}
+
+	boolean isOldGenerationGc(final String collector, final String action) {
+		return "end of major GC".equals(action) || oldGenerationCollectors.contains(collector);
+	}
+
+	@Override
+	public String toString() {
+		return kind + (kind == Kind.YOUNGGCS ? "(" + youngGcsPerEpoch + ")" : kind == Kind.INTERVAL ? "(" + intervalMillis + " ms)" : "");
+	}
+}
@@ -0,0 +1,111 @@
+package org.uniHD.memory.allocation;
+
+import com.google.common.flogger.FluentLogger;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.uniHD.memory.GcTimeline;
+
+import javax.management.openmbean.CompositeData;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.uniHD.memory.LiveObjectMap.getCurrentGen;
+import static org.uniHD.memory.LiveObjectMap.handleMajorGC;
+
+/**
+ * Processes the GC notifications on an agent thread: the JMX notification thread only hands the notification data
+ * over. For every GC, the occupancy of the heap pools afterwards is recorded in the {@link GcTimeline} with the
+ * generation the GC ended in; then the {@link EpochPolicy} decides whether the generation advances.
+ */
+final class GcEventProcessor implements Runnable {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	private final BlockingQueue<CompositeData> events = new LinkedBlockingQueue<CompositeData>();
+	private final EpochPolicy epochPolicy;
+	private final String[] pools;
+
+	/**
+	 * @param epochPolicy
+	 * @param memoryPools - the pools of the JVM; the heap pools are recorded, the first one supporting usage thresholds
+	 * 			(i.e. neither eden nor a survivor space) as old generation.
+	 * @param capacity - number of GCs kept by the timeline.
+	 */
+	GcEventProcessor(final EpochPolicy epochPolicy, final List<MemoryPoolMXBean> memoryPools, final int capacity) {
+		this.epochPolicy = epochPolicy;
+		final List<String> heapPools = new ArrayList<String>();
+		int oldPool = -1;
+		for (MemoryPoolMXBean pool : memoryPools) {
+			if (pool.getType() == MemoryType.HEAP) {
+				if (oldPool < 0 && pool.isUsageThresholdSupported()) {
+					oldPool = heapPools.size();
+				}
+				heapPools.add(pool.getName());
+			}
+		}
+		this.pools = heapPools.toArray(new String[heapPools.size()]);
+		GcTimeline.init(pools, oldPool, capacity);
+		logger.atFine().log("Recording heap pools %s, old generation: %s", heapPools,
+				oldPool < 0 ? "none" : heapPools.get(oldPool));
+	}
+
+	/**
+	 * Starts the processing thread.
+	 */
+	void start() {
+		final Thread thread = new Thread(this, "MemDefender-GcEvents");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Called on the JMX notification thread.
+	 *
+	 * @param gcNotification - the user data of a GC notification.
+	 */
+	void enqueue(final CompositeData gcNotification) {
+		events.offer(gcNotification);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final long[] usedAfter = new long[pools.length];
+		try {
+			for (;;) {
+				process(GarbageCollectionNotificationInfo.from(events.take()), usedAfter);
+			}
+		} catch (InterruptedException e) {
+			logger.atWarning().log("GC event processing stopped");
+		}
+	}
+
+	private void process(final GarbageCollectionNotificationInfo gcinfo, final long[] usedAfter) {
+		final Map<String, MemoryUsage> after = gcinfo.getGcInfo().getMemoryUsageAfterGc();
+		for (int pool = 0; pool < pools.length; pool++) {
+			final MemoryUsage usage = after.get(pools[pool]);
+			// a pool the collector does not report keeps its previous occupancy
+			if (usage != null) {
+				usedAfter[pool] = usage.getUsed();
+			}
+		}
+		GcTimeline.record(gcinfo.getGcInfo().getEndTime(), getCurrentGen(), usedAfter);
+
+		//update generation counter stored in LiveObjectMap, if the epoch policy says so
+		epochPolicy.onGc(gcinfo.getGcName(), gcinfo.getGcAction());
+
+		//keep counts of full gcs, so know when to execute the detection algorithm
+		if (gcinfo.getGcAction().equals("end of major GC")) {
+			logger.atFine().log("Major GC %s was executed", gcinfo.getGcName());
+			//increments the majorGC-counter and executes leak detection if needed
+			handleMajorGC();
+		}
+	}
+}
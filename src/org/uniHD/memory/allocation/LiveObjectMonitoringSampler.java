@@ -4,7 +4,17 @@ import com.google.common.flogger.FluentLogger;
 import com.google.common.flogger.LoggerConfig;
 import com.google.monitoring.runtime.instrumentation.Sampler;
 import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.uniHD.memory.CallingContextTree;
+import org.uniHD.memory.MemoryBudget;
+import org.uniHD.memory.ThreadDimension;
+import org.uniHD.memory.leakinjection.MemoryFaultInjector;
+import org.uniHD.memory.leakinjection.TransientLeakRetainer;
+import org.uniHD.memory.leakinjection.TransientLeakRetainer.LifetimeDistribution;
+import org.uniHD.memory.util.AgentMetrics;
 import org.uniHD.memory.util.Configuration;
+import org.uniHD.memory.util.FinalReport;
+import org.uniHD.memory.util.LiveObjectDumpGenerator;
 
 import javax.management.Notification;
 import javax.management.NotificationEmitter;
@@ -16,11 +26,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import static org.uniHD.memory.LiveObjectMap.*;
-import static sun.misc.Cleaner.create;
+import static org.uniHD.memory.util.Constants.FILE_EXTENSION;
+import static org.uniHD.memory.util.Constants.FINAL_REPORT_SUFFIX;
 
 /**
  * This sampler relies on bytecode instrumentation provided by the java-allocation-instrumenter (Jeremy Manson) to
@@ -37,16 +51,99 @@ public class LiveObjectMonitoringSampler implements Sampler {
 		logger.atFine().log("LiveObjectMonitoringSampler created");
 	}
 
-	static Random rand = new Random();
+	// global switch of the monitoring, see setEnabled(boolean)
+	private static volatile boolean enabled = true;
     private final Set<String> sourceCodeFiles;
 	private final Configuration config;
+	// releases injected leaks after their lifetime, null if leaks are retained permanently or the injector is off
+	private volatile TransientLeakRetainer transientLeaks;
+	// the sampler of the agent, whose settings are changed by configure(String, String)
+	private static volatile LiveObjectMonitoringSampler instance;
 
     public LiveObjectMonitoringSampler(final String[] sourceFileRootFolders, Configuration configuration) {
     	sourceCodeFiles = SourceFileCollector.collectSourceFile(sourceFileRootFolders);
     	config = configuration;
-		//add handler for garbage collection events
-		addGcHandler();
+		createTransientLeakRetainer();
+		setHumongousThreshold(config.siteHumongousThreshold > 0 ? config.siteHumongousThreshold : g1HumongousThreshold());
+		logger.atFine().log("Humongous allocation threshold: %d bytes", getHumongousThreshold());
+		if (config.siteMaxTracked > 0) {
+			setBounded(config.siteMaxTracked, config.siteSketchSize > 0 ? config.siteSketchSize : config.siteMaxTracked);
+			logger.atFine().log("Bounded mode, tracking at most %d sites exactly", config.siteMaxTracked);
+		}
+		if (!config.siteThreadDimension.equals(ThreadDimension.OFF)) {
+			ThreadDimension.configure(config.siteThreadDimension, config.siteThreadPatterns);
+			logger.atFine().log("Sites are told apart by the thread dimension %s", config.siteThreadDimension);
+		}
+		if (config.samplingAdaptive) {
+			setAdaptiveSampling(config.samplingMaxInterval, config.samplingStableEpochs);
+			logger.atFine().log("Adaptive sampling up to every %d-th object after %d stable epochs",
+					config.samplingMaxInterval, config.samplingStableEpochs);
+		}
+		if (config.agentMemoryBudgetMB > 0) {
+			MemoryBudget.setBudget(config.agentMemoryBudgetMB * 1024L * 1024L, config.samplingMaxInterval);
+			logger.atFine().log("Memory budget of the agent: %d MB", config.agentMemoryBudgetMB);
+		}
+		setTrends(config.trendWindow, config.trendAlpha);
+		LiveObjectDumpGenerator.setParallelism(config.dumpParallelism);
+		if (config.reportFinal) {
+			final String reportFile = config.appName + FINAL_REPORT_SUFFIX + FILE_EXTENSION;
+			try {
+				FinalReport.install(reportFile, config.reportThresholdPercent);
+				logger.atFine().log("Final report to %s", reportFile);
+			} catch (IOException e) {
+				logger.atWarning().withCause(e).log("Cannot open the final report %s", reportFile);
+			}
+		}
+		//add handler for garbage collection events, advancing the generation according to the epoch policy
+		final EpochPolicy epochPolicy = new EpochPolicy(config);
+		final GcEventProcessor gcEvents = new GcEventProcessor(epochPolicy, ManagementFactory.getMemoryPoolMXBeans(),
+				config.gcTimelineSize);
+		gcEvents.start();
+		addGcHandler(gcEvents);
+		epochPolicy.start();
+		logger.atFine().log("Epoch policy: %s", epochPolicy);
 		logger.atFine().log("LiveObjectMonitoringSampler constructor. Found srcCodeFiles =%s", sourceCodeFiles);
+		instance = this;
+	}
+
+	/**
+	 * Changes a setting of the running agent, e.g. the sampling or the leak injection, and applies it right away; the
+	 * allocations sampled meanwhile see either the old or the new value. See
+	 * {@link Configuration#setRuntimeConfig(String, String)} for the settings which can be changed.
+	 *
+	 * @param key - the key as in the properties file.
+	 * @param value
+	 * @throws IllegalArgumentException if the setting cannot be changed at runtime or the value is invalid.
+	 * @throws IllegalStateException if the agent is not running.
+	 */
+	public static void configure(final String key, final String value) {
+		final LiveObjectMonitoringSampler sampler = instance;
+		if (sampler == null) {
+			throw new IllegalStateException("Allocation monitoring is not running");
+		}
+		final Configuration config = sampler.config;
+		config.setRuntimeConfig(key, value);
+		if (config.samplingAdaptive) {
+			setAdaptiveSampling(config.samplingMaxInterval, config.samplingStableEpochs);
+		} else {
+			// sites which sampled already track every object again from their next allocation on
+			setAdaptiveSampling(1, config.samplingStableEpochs);
+		}
+		// the sampling interval of the budget's shedding level follows sampling.maxInterval
+		MemoryBudget.setBudget(config.agentMemoryBudgetMB * 1024L * 1024L, config.samplingMaxInterval);
+		setHumongousThreshold(config.siteHumongousThreshold > 0 ? config.siteHumongousThreshold : g1HumongousThreshold());
+		setTrends(config.trendWindow, config.trendAlpha);
+		LiveObjectDumpGenerator.setParallelism(config.dumpParallelism);
+		MemoryFaultInjector.setLeakStrengths(config.injectorLeakStrengths);
+		sampler.createTransientLeakRetainer();
+	}
+
+	// the retainer is created when the injector is switched on in transient mode, at startup or at runtime
+	private void createTransientLeakRetainer() {
+		if (transientLeaks == null && config.injectorOn && Configuration.INJECTOR_MODE_TRANSIENT.equals(config.injectorMode)) {
+			transientLeaks = new TransientLeakRetainer(config.injectorWheelTickMs, config.injectorLifetimeMs,
+					config.injectorMaxLifetimeMs, LifetimeDistribution.valueOf(config.injectorLifetimeDistribution.toUpperCase()));
+		}
 	}
     
     /*
@@ -56,6 +153,10 @@ public class LiveObjectMonitoringSampler implements Sampler {
      */
     @Override
     public void sampleAllocation(final int count, final String desc, final Object newObj, final long size)  {
+		if (!enabled) {
+			return;
+		}
+		final long timingStart = AgentMetrics.sampleStarted();
 
 		// identify the source code line responsible for the instantiation of the object on the lowest available level
 		String allocLocation = null;
@@ -81,26 +182,30 @@ public class LiveObjectMonitoringSampler implements Sampler {
 
         // collect the measured allocation
         if (allocLocation != null) {
-			logger.atFine().atMostEvery(50, TimeUnit.MILLISECONDS).log("**** Found target class: allocLocation=%s, objectID=%s, desc=%s, strack=%s",
-					allocLocation, toIdentifierString(newObj), desc, strace);
-			final String objectID = toIdentifierString(newObj);
-            //System.out.println("objectID:" + objectID);
+			logger.atFine().atMostEvery(50, TimeUnit.MILLISECONDS).log("**** Found target class: allocLocation=%s, desc=%s, strack=%s",
+					allocLocation, desc, strace);
             //System.out.println("allocationSite:" + allocLocation);
             //System.out.println("size:" + size);
-			allocated(objectID, newObj.getClass().getName(), allocLocation, size);
-			// Following call creates a new PhantomReference (public class Cleaner extends PhantomReference<Object>)
-			create(newObj, new CleanerRunnable(objectID, allocLocation));
+			final int context = (config.siteContextDepth > 1) ? callingContext(strace, idx) : CallingContextTree.ROOT;
+			// objects of sampled sites are only counted, their deallocation need not be observed, so their id is not built
+			final String objectID = allocatedObject(newObj, newObj.getClass().getName(), allocLocation, size, count, context);
+			if (objectID != null) {
+				// Following call creates a new PhantomReference (public class PhantomCleaner extends PhantomReference<Object>)
+				PhantomCleaner.create(newObj, new CleanerRunnable(objectID, allocLocation));
+				AgentMetrics.cleanerCreated();
+			}
 			createLeaks(newObj, objectID, allocLocation);
 		}
+		AgentMetrics.sampleFinished(allocLocation != null, Math.min(idx + 1, strace.length), timingStart);
 
     }
 
-    final static int LEAK_LIST_INIT_CAPACITY = 1000;
-    static private List<Object> listOfLeaks = new ArrayList<Object>(LEAK_LIST_INIT_CAPACITY);
+    // leaks are created concurrently by all allocating threads
+    static private Queue<Object> listOfLeaks = new ConcurrentLinkedQueue<Object>();
 
     private void createLeaks(final Object newObj, String objectID, String allocLocation) {
     	if (! config.injectorOn) return;
-		if (rand.nextInt(100) > config.injectorLeakRatio) return;
+		if (ThreadLocalRandom.current().nextInt(100) > config.injectorLeakRatio) return;
 
     	if (config.injectorSelection) {
     		// Check whether current allocation site is in config.injectorSites
@@ -109,25 +214,77 @@ public class LiveObjectMonitoringSampler implements Sampler {
 				return;
 			}
 		}
-		// Ready to inject leak: add object to a static array
-		listOfLeaks.add(newObj);
+		// Ready to inject leak: retain the object for its lifetime or add it to a static array
+		final TransientLeakRetainer retainer = transientLeaks;
+		if (retainer != null) {
+			retainer.retain(newObj, ThreadLocalRandom.current());
+		} else {
+			listOfLeaks.add(newObj);
+		}
 		logger.atFine().atMostEvery(200, TimeUnit.MILLISECONDS).log("Leak created for allocation site= %s and obj= %s, ", allocLocation, newObj);
 	}
 
 
 
 	/**
-     * Method to build a java standard object identifier string from the object's native hash and class.
-     * 
-     * @param obj
-     * @return a java standard object identifier.
-     */
-	private final static String toIdentifierString(final Object obj) {
-		
-		return obj.getClass().getName() + "@0x" + Integer.toHexString(System.identityHashCode(obj));
+	 * @param strace
+	 * @param site - index of the allocating in-scope frame.
+	 * @return the node of the calling context made of the allocating frame and its config.siteContextDepth - 1
+	 * 			closest in-scope callers.
+	 */
+	private int callingContext(final StackTraceElement[] strace, final int site) {
+		// the outermost of the recorded in-scope frames
+		int outermost = site;
+		for (int i = site, depth = 0; i < strace.length && depth < config.siteContextDepth; i++) {
+			if (sourceCodeFiles.contains(strace[i].getClassName())) {
+				outermost = i;
+				depth++;
+			}
+		}
+		// the tree is rooted at the outermost caller, so contexts with common callers share nodes
+		int node = CallingContextTree.ROOT;
+		for (int i = outermost; i >= site; i--) {
+			final StackTraceElement frame = strace[i];
+			if (sourceCodeFiles.contains(frame.getClassName())) {
+				node = CallingContextTree.child(node, frame.getClassName(), frame.getLineNumber());
+			}
+		}
+		return node;
 	}
 
-	private static void addGcHandler() {
+	/**
+	 * Switches the monitoring of new allocations on or off. While it is off, sampleAllocation returns right away: no
+	 * stack walk, no map update, no Cleaner. Objects tracked before are still accounted for when they are collected.
+	 *
+	 * @param on
+	 */
+	public static void setEnabled(final boolean on) {
+		enabled = on;
+		logger.atInfo().log("Allocation monitoring %s", on ? "enabled" : "disabled");
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return half of the G1 region size, i.e. the size from which on G1 allocates objects in humongous regions; 0 if
+	 * the JVM does not use G1.
+	 */
+	private static long g1HumongousThreshold() {
+		try {
+			final HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+			if (Boolean.parseBoolean(hotspot.getVMOption("UseG1GC").getValue())) {
+				return Long.parseLong(hotspot.getVMOption("G1HeapRegionSize").getValue()) / 2;
+			}
+		} catch (RuntimeException e) {
+			// not a HotSpot JVM
+			logger.atWarning().withCause(e).log("G1 region size unknown, humongous allocations are not counted");
+		}
+		return 0L;
+	}
+
+	private static void addGcHandler(final GcEventProcessor processor) {
 		List<GarbageCollectorMXBean> gcs = java.lang.management.ManagementFactory.getGarbageCollectorMXBeans();
 		for (GarbageCollectorMXBean gc : gcs) {
 			NotificationEmitter emitter = (NotificationEmitter) gc;
@@ -135,23 +292,11 @@ public class LiveObjectMonitoringSampler implements Sampler {
 				@Override
 				public void handleNotification(Notification notification, Object handback) {
 
-					//filter out other events; TODO: maybe increment currentGen only every x minor gcs
+					//filter out other events
 					//TODO: maybe implement filter instead of filtering here
 					if(notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)){
-						//update generation counter stored in LiveObjectMap
-						incrementCurrentGen();
-						GarbageCollectionNotificationInfo gcinfo = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
-						//System.out.println("GC occured; generation " + getCurrentGen() );
-						//System.out.println("Action executed: " +  gcinfo.getGcAction());
-
-
-						//keep counts of full gcs, so know when to execute the detection algorithm
-						if(gcinfo.getGcAction().equals("end of major GC")){
-							System.out.println("major GC was executed");
-							//increments the majorGC-counter and executes leak detection if needed
-							handleMajorGC();
-
-						}
+						//the notification is processed on the agent's thread, see GcEventProcessor
+						processor.enqueue((CompositeData) notification.getUserData());
 					}
 				}
 			};
@@ -178,6 +323,7 @@ public class LiveObjectMonitoringSampler implements Sampler {
 		 */
 		@Override
 		public final void run() {
+			AgentMetrics.cleanerRun();
 			try {
 				finalized(objectId);
 			} catch (FileNotFoundException e) {
@@ -0,0 +1,136 @@
+package org.uniHD.memory.allocation;
+
+import com.google.common.flogger.FluentLogger;
+import org.uniHD.memory.util.Stripes;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs a clean-up action once an object has become phantom reachable, like sun.misc.Cleaner, which it replaces: the
+ * Cleaner keeps all its references in one list guarded by the monitor of its class, which every allocating thread
+ * enters, so a virtual thread waiting for it pins its carrier thread (and the class is gone from Java 9 on).
+ *
+ * The cleaners are kept reachable in STRIPES doubly-linked lists, each guarded by a ReentrantLock and chosen by the id
+ * of the creating thread, so threads rarely contend and a waiting virtual thread unmounts. A daemon thread takes the
+ * cleaners of collected objects from the reference queue and cleans them.
+ */
+public final class PhantomCleaner extends PhantomReference<Object> {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	private final static ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+	private final static int STRIPES = Stripes.forProcessors(Runtime.getRuntime().availableProcessors());
+	private final static Stripe[] LISTS = new Stripe[STRIPES];
+	static {
+		for (int i = 0; i < STRIPES; i++) {
+			LISTS[i] = new Stripe();
+		}
+		final Thread reaper = new Thread(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				for (;;) {
+					try {
+						((PhantomCleaner) QUEUE.remove()).clean();
+					} catch (InterruptedException e) {
+						logger.atWarning().log("Cleaning of collected objects stopped");
+						return;
+					} catch (Throwable t) {
+						logger.atWarning().withCause(t).log("Clean-up action failed");
+					}
+				}
+			}
+		}, "MemDefender-Cleaner");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	private final Runnable action;
+	private final Stripe stripe;
+	// neighbours in the list of the stripe, guarded by its lock
+	private PhantomCleaner previous;
+	private PhantomCleaner next;
+	private boolean linked;
+
+	private PhantomCleaner(final Object referent, final Runnable action, final Stripe stripe) {
+
+		super(referent, QUEUE);
+		this.action = action;
+		this.stripe = stripe;
+	}
+
+	/**
+	 * @param referent - the observed object.
+	 * @param action - run once, on the thread of the cleaner, after the referent has become phantom reachable.
+	 * @return the cleaner, which may also be cleaned explicitly.
+	 */
+	public static PhantomCleaner create(final Object referent, final Runnable action) {
+
+		final Stripe stripe = LISTS[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+		final PhantomCleaner cleaner = new PhantomCleaner(referent, action, stripe);
+		stripe.add(cleaner);
+		return cleaner;
+	}
+
+	/**
+	 * Runs the action, unless the cleaner was cleaned before.
+	 */
+	public void clean() {
+
+		if (stripe.remove(this)) {
+			action.run();
+		}
+	}
+
+	private final static class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private PhantomCleaner first;
+
+		private void add(final PhantomCleaner cleaner) {
+
+			lock.lock();
+			try {
+				cleaner.next = first;
+				if (first != null) {
+					first.previous = cleaner;
+				}
+				first = cleaner;
+				cleaner.linked = true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return whether the cleaner was still linked.
+		 */
+		private boolean remove(final PhantomCleaner cleaner) {
+
+			lock.lock();
+			try {
+				if (!cleaner.linked) {
+					return false;
+				}
+				if (cleaner.previous != null) {
+					cleaner.previous.next = cleaner.next;
+				} else {
+					first = cleaner.next;
+				}
+				if (cleaner.next != null) {
+					cleaner.next.previous = cleaner.previous;
+				}
+				cleaner.previous = null;
+				cleaner.next = null;
+				cleaner.linked = false;
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -1,61 +1,159 @@
 package org.uniHD.memory.leakinjection;
 
+import com.google.common.flogger.FluentLogger;
+import org.uniHD.memory.util.Stripes;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
 /*  Inserts memory leaks into running application.
-Parameter leakStrength is retrieved from java system properties under name "java.leakStrength.<allocationSiteIndex>".
-<allocationSiteIndex> is integer value of own choice identifying the location of the injection.
+Parameter leakStrength is retrieved once from java system properties under name "java.leakStrength.<allocationSiteIndex>"
+and can be changed at runtime via setLeakStrength(..) or the agent configuration key "injector.leakStrengths".
+<allocationSiteIndex> is non-negative integer value of own choice identifying the location of the injection.
 
 Behavior depending on leakStrength:
-leakStrength < 0: 	there is no allocation site visible by LOM
+leakStrength < 0: 	there is no allocation site visible by LOM (default for sites without configured strength)
 leakStrength == 0: 	allocation site is visible by LOM (minimumArtificialAllocationSize is allocated but disposable) - no leak
 leakStrength >= 0:	leak of size minimumArtificialAllocationSize..(leakStrength-1) is created
 To use, you must
-1. include this class in the java path of targeted application,
-2. set leakStrength via java.leakStrength.<allocationSiteIndex> system property (todo: complete how)
+1. include this class in the java path of targeted application (it is part of MemDefender.jar),
+2. set leakStrength via -Djava.leakStrength.<allocationSiteIndex>=<leakStrength> or injector.leakStrengths=<index>:<strength>,..
 3. include code at the desired leak position:
 
 int leakAmount = MemoryFaultInjector.computeLeakAmount (<allocationSiteIndex>);
 byte[] allocatedMemory = new byte[leakAmount]; 		// potential leak is shown by analysis here
 addLeak(allocatedMemory, <allocationSiteIndex>);
+
+Injected sites may sit in hot loops: the strengths are read from a plain array, the random numbers come from
+ThreadLocalRandom and the leaked arrays go to a striped concurrent store, so no call takes a lock or parses anything.
 */
 
 
 public class MemoryFaultInjector {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	private final static String LEAK_STRENGTH_PROPERTY_PREFIX = "java.leakStrength.";
+	// strength of all sites that have not been configured
+	private final static int UNCONFIGURED_LEAK_STRENGTH = -1;
+	// Minimum number of bytes an artificial allocation site allocates (if "visible" but possibly leakSize == 0)
+	private final static int MINIMUM_ARTIFICIAL_ALLOCATION_SIZE = 1;
+
+	// leak strength per allocation site index, replaced as a whole on reconfiguration (copy on write)
+	private static volatile int[] leakStrengths = readLeakStrengths(System.getProperties());
+
+	// define leaking collection object as part of the long-living object; striped to keep leaking threads apart
+	private final static int STRIPES = Stripes.forProcessors(Runtime.getRuntime().availableProcessors());
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final static ConcurrentLinkedQueue<byte[]>[] leakingObjects = new ConcurrentLinkedQueue[STRIPES];
+	static {
+		for (int i = 0; i < STRIPES; i++) {
+			leakingObjects[i] = new ConcurrentLinkedQueue<byte[]>();
+		}
+	}
+	private final static AtomicLong numLeaks = new AtomicLong();
+	private final static AtomicLong leakedBytes = new AtomicLong();
+
+	private MemoryFaultInjector() { /* supports static referencing only */ }
 
-	// define leaking collection object as part of the long-living object
-	private final static java.util.Collection<byte[]> leakingObjects = new java.util.LinkedList<byte[]>();
-	
 	// Get value of parameter leakStrength (encapsulate in a method for potential later mechanism changes
 	public static int getLeakStrength(int allocationSiteIndex) {
-		    int leakStrength = java.lang.Integer.parseInt(System.getProperty("java.leakStrength." + allocationSiteIndex));
-		    return leakStrength;
+		final int[] strengths = leakStrengths;
+		return (allocationSiteIndex >= 0 && allocationSiteIndex < strengths.length) ?
+				strengths[allocationSiteIndex] : UNCONFIGURED_LEAK_STRENGTH;
+	}
+
+	// change the leak strength of a single allocation site at runtime
+	public static synchronized void setLeakStrength(int allocationSiteIndex, int leakStrength) {
+		if (allocationSiteIndex < 0) {
+			throw new IllegalArgumentException("Allocation site index must not be negative: " + allocationSiteIndex);
+		}
+		final int[] strengths = Arrays.copyOf(leakStrengths, Math.max(leakStrengths.length, allocationSiteIndex + 1));
+		Arrays.fill(strengths, leakStrengths.length, strengths.length, UNCONFIGURED_LEAK_STRENGTH);
+		strengths[allocationSiteIndex] = leakStrength;
+		leakStrengths = strengths;
+	}
+
+	// apply a list of the form "<allocationSiteIndex>:<leakStrength>[,<allocationSiteIndex>:<leakStrength>]"
+	public static void setLeakStrengths(String commaSeparatedStrengths) {
+		for (String siteAndStrength : commaSeparatedStrengths.split(",")) {
+			if (siteAndStrength.trim().isEmpty()) {
+				continue;
+			}
+			final String[] pair = siteAndStrength.split(":");
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("Leak strength must have format <allocationSiteIndex>:<leakStrength>, got '"
+						+ siteAndStrength + "'");
+			}
+			setLeakStrength(Integer.parseInt(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+		}
 	}
-	
-	
+
+
 	// compute leak amount for each leak allocation site
 	public static int computeLeakAmount(int allocationSiteIndex){
-	
-		// Minimum number of bytes an artificial allocation site allocates (if "visible" but possibly leakSize == 0)
-		final int minimumArtificialAllocationSize = 1;
+
 	  	int leakAmount = -1;
 	  	int leakStrength = getLeakStrength(allocationSiteIndex);
-	
+
 		if (leakStrength >= 0) {
 			// create leak amount of size in minimumArtificialAllocationSize..(leakStrength-1)
-			leakAmount = new java.util.Random().nextInt(leakStrength+1);
+			leakAmount = ThreadLocalRandom.current().nextInt(leakStrength+1);
 			// for visible allocation site (with or w/out leak), leakAmount must be at least minimumArtificialAllocationSize
-			leakAmount = Math.max(minimumArtificialAllocationSize, leakAmount);
+			leakAmount = Math.max(MINIMUM_ARTIFICIAL_ALLOCATION_SIZE, leakAmount);
 	  	}
 	  	// for negative leakStrength the leakAmount is 0 => no memory allocation at all
-		System.out.println("leak:"+leakAmount);
 		return leakAmount;
 	}
-	
-	
+
+
 	// add leakAmount to the collection of leakingObjects for leakStrength > 0
 	public static void addLeak(byte[] allocatedMemory, int allocationSiteIndex){
 		int leakStrength = getLeakStrength(allocationSiteIndex);
-		if (leakStrength > 0) {
-			leakingObjects.add(allocatedMemory);
+		if (leakStrength > 0 && allocatedMemory != null) {
+			leakingObjects[(int) Thread.currentThread().getId() & (STRIPES - 1)].add(allocatedMemory);
+			numLeaks.incrementAndGet();
+			leakedBytes.addAndGet(allocatedMemory.length);
+		}
+	}
+
+	// number of arrays leaked so far
+	public static long numLeaks() {
+		return numLeaks.get();
+	}
+
+	// number of bytes leaked so far (array payload only)
+	public static long leakedBytes() {
+		return leakedBytes.get();
+	}
+
+	// parse all "java.leakStrength.<allocationSiteIndex>" properties into an array indexed by the site
+	private static int[] readLeakStrengths(Properties properties) {
+		int[] strengths = new int[0];
+		for (Enumeration<?> names = properties.propertyNames(); names.hasMoreElements(); ) {
+			final String name = String.valueOf(names.nextElement());
+			if (!name.startsWith(LEAK_STRENGTH_PROPERTY_PREFIX)) {
+				continue;
+			}
+			try {
+				final int allocationSiteIndex = Integer.parseInt(name.substring(LEAK_STRENGTH_PROPERTY_PREFIX.length()));
+				final int leakStrength = Integer.parseInt(properties.getProperty(name).trim());
+				if (allocationSiteIndex < 0) {
+					continue;
+				}
+				if (allocationSiteIndex >= strengths.length) {
+					final int oldLength = strengths.length;
+					strengths = Arrays.copyOf(strengths, allocationSiteIndex + 1);
+					Arrays.fill(strengths, oldLength, strengths.length, UNCONFIGURED_LEAK_STRENGTH);
+				}
+				strengths[allocationSiteIndex] = leakStrength;
+			} catch (NumberFormatException e) {
+				logger.atWarning().log("Ignoring malformed leak strength property %s", name);
+			}
 		}
+		return strengths;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+package org.uniHD.memory.leakinjection;
+
+import com.google.common.flogger.FluentLogger;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps injected leaks alive for a limited lifetime only, simulating cache-like growth and temporary retention instead
+ * of a permanent leak.
+ *
+ * Expiry is driven by a hierarchical timing wheel (Varghese and Lauck) which is owned by a single background thread.
+ * Application threads only push new entries onto a lock-free stack; the wheel thread moves them into their slots on
+ * the next tick. Inserting and expiring an entry are both O(1), independent of the number of retained objects.
+ */
+public final class TransientLeakRetainer {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	/**
+	 * Geometry of the wheel: LEVELS wheels of 2^SLOT_BITS slots each. With a tick of 10 ms the wheel covers
+	 * 2^32 ticks (more than a year); longer lifetimes are clamped.
+	 */
+	private final static int SLOT_BITS = 8;
+	private final static int SLOTS = 1 << SLOT_BITS;
+	private final static int SLOT_MASK = SLOTS - 1;
+	private final static int LEVELS = 4;
+	private final static long MAX_DELAY_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	/**
+	 * Distributions the lifetime of a retained object can be drawn from.
+	 */
+	public enum LifetimeDistribution {
+		/** every object is retained for exactly the minimum lifetime */
+		FIXED,
+		/** lifetimes are uniformly distributed between the minimum and the maximum lifetime */
+		UNIFORM,
+		/** lifetimes are exponentially distributed with the minimum lifetime as mean, capped by the maximum */
+		EXPONENTIAL;
+
+		private long sample(final long minMillis, final long maxMillis, final Random random) {
+			switch (this) {
+				case UNIFORM:
+					return (maxMillis <= minMillis) ? minMillis : minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+				case EXPONENTIAL:
+					final long lifetime = (long) (-minMillis * Math.log(1.0 - random.nextDouble()));
+					return (maxMillis > 0) ? Math.min(lifetime, maxMillis) : lifetime;
+				default:
+					return minMillis;
+			}
+		}
+	}
+
+	private final long tickMillis;
+	private final long lifetimeMillis;
+	private final long maxLifetimeMillis;
+	private final LifetimeDistribution distribution;
+
+	/**
+	 * wheels[level][slot] is the head of a singly linked list; only accessed by the wheel thread.
+	 */
+	private final Entry[][] wheels = new Entry[LEVELS][SLOTS];
+
+	/**
+	 * Entries handed over by application threads, consumed by the wheel thread at each tick.
+	 */
+	private final AtomicReference<Entry> pending = new AtomicReference<Entry>();
+
+	private final AtomicLong retained = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+
+	private final long startNanos;
+	private long currentTick = 0;
+
+	/**
+	 * @param tickMillis - resolution of the wheel.
+	 * @param lifetimeMillis - the fixed lifetime, lower bound (uniform) or mean (exponential) of the lifetime.
+	 * @param maxLifetimeMillis - upper bound of the lifetime, ignored for {@link LifetimeDistribution#FIXED}.
+	 * @param distribution
+	 */
+	public TransientLeakRetainer(final long tickMillis, final long lifetimeMillis, final long maxLifetimeMillis,
+								 final LifetimeDistribution distribution) {
+		if (tickMillis <= 0 || lifetimeMillis < 0) {
+			throw new IllegalArgumentException("Tick and lifetime of transient leaks must be positive");
+		}
+		this.tickMillis = tickMillis;
+		this.lifetimeMillis = lifetimeMillis;
+		this.maxLifetimeMillis = maxLifetimeMillis;
+		this.distribution = distribution;
+		this.startNanos = System.nanoTime();
+
+		final Thread wheelThread = new Thread(new WheelRunner(), "MemDefender-LeakRetainer");
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+		logger.atFine().log("Transient leak retention started: tick=%d ms, lifetime=%d..%d ms (%s)",
+				tickMillis, lifetimeMillis, maxLifetimeMillis, distribution);
+	}
+
+	/**
+	 * Retains the given object for a lifetime drawn from the configured distribution.
+	 *
+	 * @param leak
+	 * @param random - source of randomness of the calling thread.
+	 */
+	public void retain(final Object leak, final Random random) {
+		retain(leak, distribution.sample(lifetimeMillis, maxLifetimeMillis, random));
+	}
+
+	/**
+	 * Retains the given object for (at least) the given number of milliseconds.
+	 *
+	 * @param leak
+	 * @param lifetimeMillis
+	 */
+	public void retain(final Object leak, final long lifetimeMillis) {
+		final long delayTicks = Math.min(MAX_DELAY_TICKS, Math.max(1L, (lifetimeMillis + tickMillis - 1) / tickMillis));
+		final Entry entry = new Entry(leak, nowTick() + delayTicks);
+		Entry head;
+		do {
+			head = pending.get();
+			entry.next = head;
+		} while (!pending.compareAndSet(head, entry));
+		retained.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of objects currently kept alive.
+	 */
+	public long numRetained() {
+		return retained.get() - released.get();
+	}
+
+	/**
+	 * @return the number of objects released so far.
+	 */
+	public long numReleased() {
+		return released.get();
+	}
+
+	private long nowTick() {
+		return (System.nanoTime() - startNanos) / TimeUnit.MILLISECONDS.toNanos(tickMillis);
+	}
+
+	/**
+	 * Puts an entry into the slot of the lowest level whose range covers its deadline. Wheel thread only.
+	 */
+	private void schedule(final Entry entry) {
+		final long delay = entry.deadline - currentTick;
+		if (delay <= 0) {
+			release(entry);
+			return;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 && delay >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		final int slot = (int) (entry.deadline >>> (SLOT_BITS * level)) & SLOT_MASK;
+		entry.next = wheels[level][slot];
+		wheels[level][slot] = entry;
+	}
+
+	private void release(final Entry entry) {
+		entry.leak = null;
+		released.incrementAndGet();
+	}
+
+	/**
+	 * Advances the wheel by one tick: hands down the due slots of the higher levels, then expires the current slot.
+	 */
+	private void advance() {
+		currentTick++;
+		for (int level = 1; level < LEVELS; level++) {
+			if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+				break;
+			}
+			final int slot = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+			Entry entry = wheels[level][slot];
+			wheels[level][slot] = null;
+			while (entry != null) {
+				final Entry next = entry.next;
+				schedule(entry);
+				entry = next;
+			}
+		}
+		final int slot = (int) currentTick & SLOT_MASK;
+		Entry entry = wheels[0][slot];
+		wheels[0][slot] = null;
+		while (entry != null) {
+			final Entry next = entry.next;
+			// entries of the current slot are due by construction
+			release(entry);
+			entry = next;
+		}
+	}
+
+	private final class WheelRunner implements Runnable {
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				for (;;) {
+					Thread.sleep(tickMillis);
+					final long targetTick = nowTick();
+					// catch up with the clock if we have been delayed
+					while (currentTick < targetTick) {
+						advance();
+					}
+					for (Entry entry = pending.getAndSet(null); entry != null; ) {
+						final Entry next = entry.next;
+						schedule(entry);
+						entry = next;
+					}
+				}
+			} catch (InterruptedException e) {
+				logger.atWarning().log("Transient leak retention stopped, %d objects stay retained", numRetained());
+			}
+		}
+	}
+
+	private final static class Entry {
+
+		private Object leak;
+		private final long deadline;
+		private Entry next;
+
+		private Entry(final Object leak, final long deadline) {
+			this.leak = leak;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.uniHD.memory.util;
+
+import org.uniHD.memory.CallingContextTree;
+import org.uniHD.memory.LiveObjectMap;
+import org.uniHD.memory.MemoryBudget;
+import org.uniHD.memory.SiteSketch;
+import org.uniHD.memory.allocation.LiveObjectMonitoringSampler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Always-on self-instrumentation of the agent: what the monitoring itself costs, in time and in heap.
+ *
+ * All counters are striped ({@link LongAdder}) or lock-free histograms, so updating them from the allocation and
+ * deallocation hooks neither blocks nor allocates. Only about one in TIMING_INTERVAL calls of the sampler is timed, to
+ * keep the cost of System.nanoTime() out of the common path.
+ */
+public final class AgentMetrics {
+
+	/**
+	 * Time about one in TIMING_INTERVAL sampler calls, picked at random (must be a power of two).
+	 */
+	private final static int TIMING_INTERVAL = 64;
+
+	/**
+	 * Estimated retained bytes of the agent's structures: per tracked object (map entry, object id, shadow record,
+	 * phantom reference and its clean-up action), per allocation site (map entry, key, summary) and per generation
+	 * entry of a site (map node, boxed key, counters). Shallow sizes of a 64-bit JVM with compressed oops.
+	 */
+	private final static long BYTES_PER_OBJECT = 280;
+	private final static long BYTES_PER_SITE = 300;
+	private final static long BYTES_PER_GENERATION = 72;
+
+	private final static LongAdder SAMPLED_ALLOCATIONS = new LongAdder();
+	private final static LongAdder IN_SCOPE_ALLOCATIONS = new LongAdder();
+	private final static LongAdder SAMPLED_OUT_ALLOCATIONS = new LongAdder();
+	private final static LongAdder FRAMES_WALKED = new LongAdder();
+	private final static LogHistogram SAMPLE_NANOS = new LogHistogram(40);
+
+	private final static LongAdder CLEANERS_CREATED = new LongAdder();
+	private final static LongAdder CLEANERS_RUN = new LongAdder();
+	private final static LongAdder GENERATION_ENTRIES = new LongAdder();
+	private final static LongAdder EVICTED_SITES = new LongAdder();
+
+	private final static AtomicLong DUMPS = new AtomicLong();
+	private final static AtomicLong LAST_DUMP_MILLIS = new AtomicLong();
+	private final static LogHistogram DUMP_MILLIS = new LogHistogram(32);
+
+	private AgentMetrics() { /* supports static referencing only */ }
+
+	/**
+	 * Called on entry of the sampler.
+	 *
+	 * @return the start time if this call is timed, 0 otherwise.
+	 */
+	public static long sampleStarted() {
+		// a random pick of the calling thread, so the threads do not contend on a shared tick
+		return ((ThreadLocalRandom.current().nextInt() & (TIMING_INTERVAL - 1)) == 0) ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Called on exit of the sampler.
+	 *
+	 * @param inScope - true if the allocation was attributed to an application source line.
+	 * @param framesWalked - number of stack frames inspected.
+	 * @param startNanos - result of {@link #sampleStarted()}.
+	 */
+	public static void sampleFinished(final boolean inScope, final int framesWalked, final long startNanos) {
+		SAMPLED_ALLOCATIONS.increment();
+		if (inScope) {
+			IN_SCOPE_ALLOCATIONS.increment();
+		}
+		FRAMES_WALKED.add(framesWalked);
+		if (startNanos != 0L) {
+			SAMPLE_NANOS.record(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Called for an in-scope allocation which is not tracked because its site is sampled.
+	 */
+	public static void allocationSampledOut() {
+		SAMPLED_OUT_ALLOCATIONS.increment();
+	}
+
+	public static void cleanerCreated() {
+		CLEANERS_CREATED.increment();
+	}
+
+	public static void cleanerRun() {
+		CLEANERS_RUN.increment();
+	}
+
+	public static void generationEntryCreated() {
+		GENERATION_ENTRIES.increment();
+	}
+
+	/**
+	 * Called when a site is no longer tracked exactly in bounded mode.
+	 */
+	public static void siteEvicted() {
+		EVICTED_SITES.increment();
+	}
+
+	public static void dumpFinished(final long millis) {
+		DUMPS.incrementAndGet();
+		LAST_DUMP_MILLIS.set(millis);
+		DUMP_MILLIS.record(millis);
+	}
+
+	/**
+	 * @return the estimated number of bytes retained by the agent's own structures.
+	 */
+	public static long estimatedRetainedBytes() {
+		return LiveObjectMap.numObjects() * BYTES_PER_OBJECT + LiveObjectMap.numSummaryLines() * BYTES_PER_SITE
+				+ GENERATION_ENTRIES.sum() * BYTES_PER_GENERATION;
+	}
+
+	/**
+	 * @return a consistent-enough view of all metrics, in a stable order.
+	 */
+	public static Map<String, Long> snapshot() {
+		final Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+		final long sampled = SAMPLED_ALLOCATIONS.sum();
+		final long inScope = IN_SCOPE_ALLOCATIONS.sum();
+		metrics.put("enabled", LiveObjectMonitoringSampler.isEnabled() ? 1L : 0L);
+		metrics.put("sampledAllocations", sampled);
+		metrics.put("inScopeAllocations", inScope);
+		metrics.put("skippedAllocations", sampled - inScope);
+		metrics.put("sampledOutAllocations", SAMPLED_OUT_ALLOCATIONS.sum());
+		metrics.put("framesWalked", FRAMES_WALKED.sum());
+		metrics.put("sampleNanosP50", SAMPLE_NANOS.quantile(0.5));
+		metrics.put("sampleNanosP99", SAMPLE_NANOS.quantile(0.99));
+		metrics.put("sampleNanosMax", SAMPLE_NANOS.quantile(1.0));
+		metrics.put("trackedObjects", (long) LiveObjectMap.numObjects());
+		metrics.put("allocationSites", (long) LiveObjectMap.numSummaryLines());
+		metrics.put("contextNodes", (long) CallingContextTree.numNodes());
+		final SiteSketch tailSites = LiveObjectMap.getTailSites();
+		metrics.put("tailSites", tailSites == null ? 0L : tailSites.size());
+		metrics.put("evictedSites", EVICTED_SITES.sum());
+		metrics.put("cleanersCreated", CLEANERS_CREATED.sum());
+		metrics.put("cleanersPending", CLEANERS_CREATED.sum() - CLEANERS_RUN.sum());
+		metrics.put("dumps", DUMPS.get());
+		metrics.put("lastDumpMillis", LAST_DUMP_MILLIS.get());
+		metrics.put("dumpMillisP99", DUMP_MILLIS.quantile(0.99));
+		metrics.put("estimatedRetainedBytes", estimatedRetainedBytes());
+		metrics.put("budgetBytes", MemoryBudget.getBudgetBytes());
+		metrics.put("sheddingLevel", (long) MemoryBudget.getLevel());
+		metrics.put("sheddingEvents", MemoryBudget.getSheddingEvents());
+		metrics.put("budgetSampledOutAllocations", MemoryBudget.getSampledOutAllocations());
+		metrics.put("untrackedAllocations", MemoryBudget.getUntrackedAllocations());
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics as "name=value" lines.
+	 */
+	public static String toText() {
+		final StringBuilder result = new StringBuilder();
+		for (Map.Entry<String, Long> metric : snapshot().entrySet()) {
+			result.append(metric.getKey()).append('=').append(metric.getValue()).append('\n');
+		}
+		return result.toString();
+	}
+}
@@ -19,15 +19,106 @@ public class Configuration {
     // Allocation-instrumenter arguments
     public String JAIArgs = "";
 
+    // ==== epoch (generation) properties ====
+    // When the generation advances: everyGc, youngGcs (every epoch.youngGcs young GCs), oldGc or interval
+    public String epochPolicy = "everyGc";
+    private static String KEY_epochPolicy = "epoch.policy";
+    public int epochYoungGcs = 10;
+    private static String KEY_epochYoungGcs = "epoch.youngGcs";
+    public long epochIntervalMs = 10000;
+    private static String KEY_epochIntervalMs = "epoch.intervalMs";
+
+    // Number of GCs for which the occupancy of the heap pools afterwards is kept
+    public int gcTimelineSize = 1024;
+    private static String KEY_gcTimelineSize = "gc.timelineSize";
+
+    // ==== allocation site properties ====
+    // Objects of at least this size (bytes) count as humongous; 0 = half of the G1 region size, if G1 is used
+    public long siteHumongousThreshold = 0;
+    private static String KEY_siteHumongousThreshold = "site.humongousThreshold";
+    // Number of in-scope frames identifying a site: 1 = allocating frame only, K > 1 adds the K - 1 closest in-scope callers
+    public int siteContextDepth = 1;
+    private static String KEY_siteContextDepth = "site.contextDepth";
+    // Bounded mode: at most this many sites are tracked exactly, the others are estimated by a sketch (0 = unbounded)
+    public int siteMaxTracked = 0;
+    private static String KEY_siteMaxTracked = "site.maxTracked";
+    // Number of sites monitored by the sketch in bounded mode (0 = as many as site.maxTracked)
+    public int siteSketchSize = 0;
+    private static String KEY_siteSketchSize = "site.sketchSize";
+    // Thread dimension of the sites: none, group (thread group) or pattern (label of the first matching site.threadPatterns)
+    public String siteThreadDimension = "none";
+    private static String KEY_siteThreadDimension = "site.threadDimension";
+    // Thread name patterns as <label>:<regex>[,<label>:<regex>], threads matching none are labeled "other"
+    public String siteThreadPatterns = "";
+    private static String KEY_siteThreadPatterns = "site.threadPatterns";
+    // Budget in MB for the heap retained by the agent's own structures (0 = unlimited)
+    public int agentMemoryBudgetMB = 0;
+    private static String KEY_agentMemoryBudgetMB = "agent.memoryBudgetMB";
+
+    // ==== leak trend properties ====
+    // Number of epochs of the per-site regression of alive objects (0 = no trends; opt-in, every epoch updates all sites)
+    public int trendWindow = 0;
+    private static String KEY_trendWindow = "trend.window";
+    // Weight of the latest net growth in the per-site moving average
+    public double trendAlpha = 0.3;
+    private static String KEY_trendAlpha = "trend.alpha";
+
+    // ==== dump properties ====
+    // Number of threads serializing a dump (0 = one per available processor)
+    public int dumpParallelism = 0;
+    private static String KEY_dumpParallelism = "dump.parallelism";
+
+    // ==== final report properties ====
+    // Write a final snapshot when the old generation exceeds report.thresholdPercent and when the JVM exits
+    public boolean reportFinal = false;
+    private static String KEY_reportFinal = "report.final";
+    public int reportThresholdPercent = 90;
+    private static String KEY_reportThresholdPercent = "report.thresholdPercent";
+
+    // ==== sampling properties ====
+    // Adaptive sampling: sites without growth are tracked at a lower rate, growing sites at full rate
+    public boolean samplingAdaptive = false;
+    private static String KEY_samplingAdaptive = "sampling.adaptive";
+    // Largest sampling interval (a power of two): at most every n-th object of a site is tracked
+    public int samplingMaxInterval = 64;
+    private static String KEY_samplingMaxInterval = "sampling.maxInterval";
+    // Number of epochs without a new peak of alive objects after which the sampling interval of a site doubles
+    public int samplingStableEpochs = 3;
+    private static String KEY_samplingStableEpochs = "sampling.stableEpochs";
+
     // ==== injector properties ====
-    public boolean injectorOn = false;
+    // volatile: read by the allocating threads, may be changed at runtime, see setRuntimeConfig(String, String)
+    public volatile boolean injectorOn = false;
     private static String KEY_injectorOn = "injector.on";
-    public boolean injectorSelection = false;
+    public volatile boolean injectorSelection = false;
     private static String KEY_injectorSelection = "injector.selection";
-    public int injectorLeakRatio = 100;
+    public volatile int injectorLeakRatio = 100;
     private static String KEY_injectorLeakRatio = "injector.leakRatio";
-    public Set<String> injectorSites;
+    public volatile Set<String> injectorSites;
     private static String KEY_injectorSites = "injector.sites";
+    // Leak retention: "permanent" keeps leaks forever, "transient" releases them after a lifetime
+    public String injectorMode = INJECTOR_MODE_PERMANENT;
+    private static String KEY_injectorMode = "injector.mode";
+    public static final String INJECTOR_MODE_PERMANENT = "permanent";
+    public static final String INJECTOR_MODE_TRANSIENT = "transient";
+    // Lifetime of transient leaks in ms: fixed value, lower bound (uniform) or mean (exponential)
+    public long injectorLifetimeMs = 1000;
+    private static String KEY_injectorLifetimeMs = "injector.lifetimeMs";
+    // Upper bound of the lifetime of transient leaks in ms (0 = unbounded for exponential)
+    public long injectorMaxLifetimeMs = 0;
+    private static String KEY_injectorMaxLifetimeMs = "injector.maxLifetimeMs";
+    // Lifetime distribution of transient leaks: fixed, uniform or exponential
+    public String injectorLifetimeDistribution = LIFETIME_FIXED;
+    private static String KEY_injectorLifetimeDistribution = "injector.lifetimeDistribution";
+    public static final String LIFETIME_FIXED = "fixed";
+    public static final String LIFETIME_UNIFORM = "uniform";
+    public static final String LIFETIME_EXPONENTIAL = "exponential";
+    // Resolution of the timing wheel releasing transient leaks
+    public long injectorWheelTickMs = 10;
+    private static String KEY_injectorWheelTickMs = "injector.wheelTickMs";
+    // Leak strengths of MemoryFaultInjector sites: <allocationSiteIndex>:<leakStrength>[,...]
+    public String injectorLeakStrengths = "";
+    private static String KEY_injectorLeakStrengths = "injector.leakStrengths";
 
 
     public void setConfigsFromPropertiesFile(String pathToPropertiesFile) {
@@ -42,16 +133,151 @@ public class Configuration {
             parseAndCheckSourcePaths(props.getProperty(KEY_sourcePaths));
         }
         appName = (String) props.getProperty(KEY_appName, appName);
+        epochPolicy = props.getProperty(KEY_epochPolicy, epochPolicy);
+        epochYoungGcs = Integer.parseInt(props.getProperty(KEY_epochYoungGcs, String.valueOf(epochYoungGcs)));
+        epochIntervalMs = Long.parseLong(props.getProperty(KEY_epochIntervalMs, String.valueOf(epochIntervalMs)));
+        siteHumongousThreshold = Long.parseLong(props.getProperty(KEY_siteHumongousThreshold, String.valueOf(siteHumongousThreshold)));
+        siteContextDepth = Integer.parseInt(props.getProperty(KEY_siteContextDepth, String.valueOf(siteContextDepth)));
+        gcTimelineSize = Integer.parseInt(props.getProperty(KEY_gcTimelineSize, String.valueOf(gcTimelineSize)));
+        trendWindow = Integer.parseInt(props.getProperty(KEY_trendWindow, String.valueOf(trendWindow)));
+        trendAlpha = Double.parseDouble(props.getProperty(KEY_trendAlpha, String.valueOf(trendAlpha)));
+        dumpParallelism = Integer.parseInt(props.getProperty(KEY_dumpParallelism, String.valueOf(dumpParallelism)));
+        reportFinal = Boolean.parseBoolean(props.getProperty(KEY_reportFinal, String.valueOf(reportFinal)));
+        reportThresholdPercent = Integer.parseInt(props.getProperty(KEY_reportThresholdPercent, String.valueOf(reportThresholdPercent)));
+        agentMemoryBudgetMB = Integer.parseInt(props.getProperty(KEY_agentMemoryBudgetMB, String.valueOf(agentMemoryBudgetMB)));
+        siteMaxTracked = Integer.parseInt(props.getProperty(KEY_siteMaxTracked, String.valueOf(siteMaxTracked)));
+        siteSketchSize = Integer.parseInt(props.getProperty(KEY_siteSketchSize, String.valueOf(siteSketchSize)));
+        siteThreadDimension = props.getProperty(KEY_siteThreadDimension, siteThreadDimension).trim().toLowerCase();
+        siteThreadPatterns = props.getProperty(KEY_siteThreadPatterns, siteThreadPatterns);
+        samplingAdaptive = Boolean.parseBoolean(props.getProperty(KEY_samplingAdaptive, String.valueOf(samplingAdaptive)));
+        samplingMaxInterval = Integer.parseInt(props.getProperty(KEY_samplingMaxInterval, String.valueOf(samplingMaxInterval)));
+        samplingStableEpochs = Integer.parseInt(props.getProperty(KEY_samplingStableEpochs, String.valueOf(samplingStableEpochs)));
         injectorOn = Boolean.parseBoolean((String) props.getProperty(KEY_injectorOn, "False"));
         injectorSelection = Boolean.parseBoolean((String) props.getProperty(KEY_injectorSelection, "False"));
         injectorLeakRatio = Integer.parseInt((String) props.getProperty(KEY_injectorLeakRatio, "100"));
-        String[] commaSeparatedSitesArray = props.getProperty(KEY_injectorSites, "").toLowerCase().split(",");
-        injectorSites = new HashSet<>();
-        Collections.addAll(injectorSites, commaSeparatedSitesArray);
+        injectorSites = parseSites(props.getProperty(KEY_injectorSites, ""));
+        injectorMode = props.getProperty(KEY_injectorMode, injectorMode).trim().toLowerCase();
+        if (!injectorMode.equals(INJECTOR_MODE_PERMANENT) && !injectorMode.equals(INJECTOR_MODE_TRANSIENT)) {
+            throw new IllegalArgumentException("Configuration value of " + KEY_injectorMode + " must be '"
+                    + INJECTOR_MODE_PERMANENT + "' or '" + INJECTOR_MODE_TRANSIENT + "'");
+        }
+        parseLifetimes(props);
+        injectorLeakStrengths = props.getProperty(KEY_injectorLeakStrengths, injectorLeakStrengths);
 
         logger.atFine().log("Parsed properties are: %s", this);
     }
 
+    /**
+     * Changes a setting while the application runs. Only the settings which the agent can apply at runtime are
+     * accepted: sampling.*, agent.memoryBudgetMB, site.humongousThreshold, trend.*, dump.parallelism and the injector settings except
+     * injector.mode and its lifetimes. The new value is checked before it is stored; the caller applies it, see
+     * LiveObjectMonitoringSampler#configure(String, String).
+     *
+     * @param key - the key as in the properties file.
+     * @param value
+     * @throws IllegalArgumentException if the setting cannot be changed at runtime or the value is invalid.
+     */
+    public void setRuntimeConfig(String key, String value) {
+        value = value.trim();
+        try {
+            if (key.equals(KEY_samplingAdaptive)) {
+                samplingAdaptive = Boolean.parseBoolean(value);
+            } else if (key.equals(KEY_samplingMaxInterval)) {
+                final int interval = Integer.parseInt(value);
+                check(interval >= 1 && Integer.bitCount(interval) == 1, key, value);
+                samplingMaxInterval = interval;
+            } else if (key.equals(KEY_samplingStableEpochs)) {
+                final int epochs = Integer.parseInt(value);
+                check(epochs >= 1, key, value);
+                samplingStableEpochs = epochs;
+            } else if (key.equals(KEY_agentMemoryBudgetMB)) {
+                final int megabytes = Integer.parseInt(value);
+                check(megabytes >= 0, key, value);
+                agentMemoryBudgetMB = megabytes;
+            } else if (key.equals(KEY_siteHumongousThreshold)) {
+                final long threshold = Long.parseLong(value);
+                check(threshold >= 0, key, value);
+                siteHumongousThreshold = threshold;
+            } else if (key.equals(KEY_trendWindow)) {
+                final int window = Integer.parseInt(value);
+                check(window == 0 || window >= 2, key, value);
+                trendWindow = window;
+            } else if (key.equals(KEY_trendAlpha)) {
+                final double alpha = Double.parseDouble(value);
+                check(alpha > 0.0 && alpha <= 1.0, key, value);
+                trendAlpha = alpha;
+            } else if (key.equals(KEY_dumpParallelism)) {
+                final int threads = Integer.parseInt(value);
+                check(threads >= 0, key, value);
+                dumpParallelism = threads;
+            } else if (key.equals(KEY_injectorOn)) {
+                injectorOn = Boolean.parseBoolean(value);
+            } else if (key.equals(KEY_injectorSelection)) {
+                injectorSelection = Boolean.parseBoolean(value);
+            } else if (key.equals(KEY_injectorLeakRatio)) {
+                final int ratio = Integer.parseInt(value);
+                check(ratio >= 0 && ratio <= 100, key, value);
+                injectorLeakRatio = ratio;
+            } else if (key.equals(KEY_injectorSites)) {
+                injectorSites = parseSites(value);
+            } else if (key.equals(KEY_injectorLeakStrengths)) {
+                for (String siteAndStrength : value.split(",")) {
+                    if (siteAndStrength.trim().isEmpty()) {
+                        continue;
+                    }
+                    final String[] pair = siteAndStrength.split(":");
+                    check(pair.length == 2 && Integer.parseInt(pair[0].trim()) >= 0, key, value);
+                    Integer.parseInt(pair[1].trim());
+                }
+                injectorLeakStrengths = value;
+            } else {
+                throw new IllegalArgumentException("Setting " + key + " cannot be changed at runtime");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": '" + value + "'", e);
+        }
+        logger.atInfo().log("Changed %s to %s", key, value);
+    }
+
+    // checks the lifetimes of transient leaks now rather than when the first leak is retained
+    private void parseLifetimes(Properties props) {
+        injectorLifetimeMs = parseMillis(props, KEY_injectorLifetimeMs, injectorLifetimeMs, 0);
+        injectorMaxLifetimeMs = parseMillis(props, KEY_injectorMaxLifetimeMs, injectorMaxLifetimeMs, 0);
+        injectorWheelTickMs = parseMillis(props, KEY_injectorWheelTickMs, injectorWheelTickMs, 1);
+        final String distribution = props.getProperty(KEY_injectorLifetimeDistribution, injectorLifetimeDistribution)
+                .trim().toLowerCase();
+        check(distribution.equals(LIFETIME_FIXED) || distribution.equals(LIFETIME_UNIFORM)
+                || distribution.equals(LIFETIME_EXPONENTIAL), KEY_injectorLifetimeDistribution, distribution);
+        if (distribution.equals(LIFETIME_UNIFORM) && injectorMaxLifetimeMs < injectorLifetimeMs) {
+            throw new IllegalArgumentException(KEY_injectorMaxLifetimeMs + " must not be less than "
+                    + KEY_injectorLifetimeMs + " for " + KEY_injectorLifetimeDistribution + "=" + LIFETIME_UNIFORM);
+        }
+        injectorLifetimeDistribution = distribution;
+    }
+
+    private static long parseMillis(Properties props, String key, long defaultValue, long min) {
+        final String value = props.getProperty(key, String.valueOf(defaultValue)).trim();
+        try {
+            final long millis = Long.parseLong(value);
+            check(millis >= min, key, value);
+            return millis;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": '" + value + "'", e);
+        }
+    }
+
+    private static void check(boolean valid, String key, String value) {
+        if (!valid) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": '" + value + "'");
+        }
+    }
+
+    private static Set<String> parseSites(String commaSeparatedSites) {
+        final Set<String> sites = new HashSet<>();
+        Collections.addAll(sites, commaSeparatedSites.toLowerCase().split(","));
+        return sites;
+    }
+
     public void setConfigsFromCmdLine(List<String> args) {
         parseAndCheckSourcePaths(args.get(0));
         // get the optional application name
@@ -17,4 +17,21 @@ public final class Constants {
 	public final static boolean FORCE_GC_BEFORE_DUMP 	= false;
 	public final static String 	MESSAGE_SEPARATOR		= "!";
 	public final static int		GC_WAITING_TIME			= 5000;
+	public final static String	COMMAND_PREFIX			= "#";
+	public final static String	METRICS_FILE_SUFFIX		= ".agent";
+	public final static String	TAIL_FILE_SUFFIX		= ".tail";
+	public final static String	FINAL_REPORT_SUFFIX		= ".final";
+	public final static String	GC_FILE_SUFFIX			= ".gc";
+	public final static String	TESTS_FILE_SUFFIX		= ".tests";
+	public final static String	DUMP_MARKER				= "#Dump";
+	
+	/**
+	 * Columns of a dump which its readers look up by name, see {@link LiveObjectDumpGenerator} and {@link DumpAnalyzer}.
+	 */
+	public final static String	SOURCE_COLUMN			= "Source";
+	public final static String	CONTEXT_COLUMN			= "Context";
+	public final static String	THREAD_COLUMN			= "Thread";
+	public final static String	ALIVE_OBJECTS_COLUMN	= "#AliveObjects";
+	public final static String	ALLOCATED_BYTES_COLUMN	= "Allocated Memory (bytes)";
+	public final static String	GENERATIONS_COLUMN		= "Generational Information";
 }
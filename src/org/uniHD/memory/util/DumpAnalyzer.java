@@ -0,0 +1,627 @@
+package org.uniHD.memory.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.uniHD.memory.util.Constants.ALIVE_OBJECTS_COLUMN;
+import static org.uniHD.memory.util.Constants.ALLOCATED_BYTES_COLUMN;
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+import static org.uniHD.memory.util.Constants.CONTEXT_COLUMN;
+import static org.uniHD.memory.util.Constants.DUMP_MARKER;
+import static org.uniHD.memory.util.Constants.GENERATIONS_COLUMN;
+import static org.uniHD.memory.util.Constants.SOURCE_COLUMN;
+import static org.uniHD.memory.util.Constants.THREAD_COLUMN;
+
+/**
+ * Ranks the allocation sites of dump files written by {@link LiveObjectDumpGenerator#dumpToFile(String, String)} by
+ * the trend of their live memory, without loading the files: every dump appended to a file adds one line per site, so
+ * the lines of a site in file order are its time series. Every dump starts with a {@link Constants#DUMP_MARKER} line;
+ * in files written before the marker, a site appearing a second time starts the next dump. The files are analyzed in
+ * parallel, each one memory-mapped in windows of WINDOW_BYTES and parsed in place; a line allocates nothing unless it
+ * belongs to a site not seen before.
+ * Per site only the sums of a least-squares fit of the live bytes over the dumps and the values of its latest line are
+ * kept, so the memory needed depends on the number of distinct sites, not on the size or number of the dumps.
+ *
+ * For every file, the top sites by slope (bytes per dump) are printed as CSV. A site is a leak suspect if its live
+ * bytes grew from dump to dump for at least SUSPECT_GROWING_FRACTION of its dumps and its alive objects stem from at
+ * least SUSPECT_GENERATIONS generations in its latest dump, i.e. old objects survive while new ones accumulate.
+ *
+ * usage: DumpAnalyzer <file>... [-top <n>] [-threads <n>]
+ */
+public class DumpAnalyzer {
+
+	public final static int DEFAULT_TOP = 20;
+	private final static long WINDOW_BYTES = 64L * 1024 * 1024;
+	private final static double SUSPECT_GROWING_FRACTION = 0.8;
+	private final static int SUSPECT_GENERATIONS = 2;
+
+	private final static String OUTPUT_HEADER = "File" + COLUMN_SEPARATOR +
+												"Source" + COLUMN_SEPARATOR +
+												"Class" + COLUMN_SEPARATOR +
+												"Context" + COLUMN_SEPARATOR +
+												"Thread" + COLUMN_SEPARATOR +
+												"#Dumps" + COLUMN_SEPARATOR +
+												"#AliveObjects" + COLUMN_SEPARATOR +
+												"Allocated Memory (bytes)" + COLUMN_SEPARATOR +
+												"Slope (bytes/dump)" + COLUMN_SEPARATOR +
+												"#GrowingDumps" + COLUMN_SEPARATOR +
+												"#SurvivingGenerations" + COLUMN_SEPARATOR +
+												"Suspect";
+
+	private final int top;
+	private final int threads;
+
+	public DumpAnalyzer(final int top, final int threads) {
+
+		this.top = top;
+		this.threads = threads;
+	}
+
+	/**
+	 * @param args - the dump files, followed by the options.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		final List<String> files = new ArrayList<String>();
+		int top = DEFAULT_TOP;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean valid = true;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-top") && i + 1 < args.length) {
+				top = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].startsWith("-")) {
+				valid = false;
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (files.isEmpty() || !valid || top < 1 || threads < 1) {
+			System.out.println("usage: java -cp MemDefender.jar " + DumpAnalyzer.class.getName()
+					+ " <file>... [-top <n>] [-threads <n>]");
+			System.exit(1);
+		}
+
+		System.exit(new DumpAnalyzer(top, threads).analyze(files, System.out));
+	}
+
+	/**
+	 * Analyzes the files concurrently and prints the ranked sites of each file, in the order of the files.
+	 *
+	 * @param files
+	 * @param out
+	 * @return the number of files which could not be analyzed.
+	 * @throws InterruptedException
+	 */
+	public int analyze(final List<String> files, final PrintStream out) throws InterruptedException {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+		final List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+		try {
+			for (final String file : files) {
+				results.add(executor.submit(new Callable<List<String>>() {
+
+					@Override
+					public List<String> call() throws IOException {
+						final FileAnalysis analysis = new FileAnalysis();
+						analysis.parse(file);
+						return analysis.rank(file, top);
+					}
+				}));
+			}
+
+			int failed = 0;
+			out.println(OUTPUT_HEADER);
+			for (int i = 0; i < files.size(); i++) {
+				try {
+					for (String line : results.get(i).get()) {
+						out.println(line);
+					}
+				} catch (ExecutionException e) {
+					System.err.println("Failed to analyze " + files.get(i) + ": " + e.getCause());
+					failed++;
+				}
+			}
+			out.flush();
+			return failed;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * The sites of one dump file: an open-addressing hash table over the identifier columns (source,class,context,thread) of
+	 * the lines, which are copied into one byte array, and the state of the sites in parallel primitive arrays.
+	 */
+	final static class FileAnalysis {
+
+		private final static int INITIAL_CAPACITY = 1024;
+		private final static int NO_SITE = -1;
+
+		// the index of the last dump parsed
+		private final int untilDump;
+		private boolean done;
+
+		// column indexes taken from the header
+		private int identifierColumns = -1;
+		// the identifier columns missing in dumps written before the Context or Thread column, left empty
+		private String keyPadding = "";
+		private int aliveColumn;
+		private int bytesColumn;
+		private int generationsColumn;
+
+		// hash table of the site indexes, NO_SITE for empty slots
+		private int[] table = newTable(2 * INITIAL_CAPACITY);
+		private int[] hashes = new int[INITIAL_CAPACITY];
+		private int[] keyOffsets = new int[INITIAL_CAPACITY];
+		private int[] keyLengths = new int[INITIAL_CAPACITY];
+		private byte[] keys = new byte[64 * INITIAL_CAPACITY];
+		private int keysLength;
+		private int sites;
+
+		// the index of the dump a line belongs to, advanced by the markers; without markers a site appearing twice in a
+		// dump starts the next one
+		private int dump;
+		private boolean marked;
+		// whether no site was listed yet, in files starting without a marker
+		private boolean dumpEmpty = true;
+		private int[] lastDump = new int[INITIAL_CAPACITY];
+		private int[] dumps = new int[INITIAL_CAPACITY];
+		private int[] growingDumps = new int[INITIAL_CAPACITY];
+		private int[] survivingGenerations = new int[INITIAL_CAPACITY];
+		private long[] aliveObjects = new long[INITIAL_CAPACITY];
+		private long[] aliveBytes = new long[INITIAL_CAPACITY];
+		// sums of the least-squares fit of the live bytes over the dump index
+		private double[] sumX = new double[INITIAL_CAPACITY];
+		private double[] sumY = new double[INITIAL_CAPACITY];
+		private double[] sumXY = new double[INITIAL_CAPACITY];
+		private double[] sumXX = new double[INITIAL_CAPACITY];
+
+		FileAnalysis() {
+
+			this(Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @param untilDump - index of the last dump parsed, the first one is 0.
+		 */
+		FileAnalysis(final int untilDump) {
+
+			this.untilDump = untilDump;
+		}
+
+		/**
+		 * Parses the file window by window. A window ends after its last complete line, the next one starts there.
+		 *
+		 * @param fileName
+		 * @throws IOException if the file cannot be read or a line does not fit into a window.
+		 */
+		void parse(final String fileName) throws IOException {
+
+			final RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			try {
+				final FileChannel channel = file.getChannel();
+				final long size = channel.size();
+				long position = 0L;
+				while (position < size && !done) {
+					final int length = (int) Math.min(WINDOW_BYTES, size - position);
+					final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+					final boolean last = position + length == size;
+					int end = length;
+					if (!last) {
+						while (end > 0 && window.get(end - 1) != '\n') {
+							end--;
+						}
+						if (end == 0) {
+							throw new IOException("Line at byte " + position + " of " + fileName + " exceeds "
+									+ WINDOW_BYTES + " bytes");
+						}
+					}
+					int start = 0;
+					while (start < end && !done) {
+						int lineEnd = start;
+						while (lineEnd < end && window.get(lineEnd) != '\n') {
+							lineEnd++;
+						}
+						parseLine(window, start, (lineEnd > start && window.get(lineEnd - 1) == '\r') ? lineEnd - 1
+								: lineEnd, fileName);
+						start = lineEnd + 1;
+					}
+					position += end;
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		private void parseLine(final MappedByteBuffer window, final int start, final int end, final String fileName)
+				throws IOException {
+
+			if (start == end) {
+				return;
+			}
+			if (startsWith(window, start, end, DUMP_MARKER + COLUMN_SEPARATOR)) {
+				// a dump starts; the first marker of a file starts the first dump, unless sites were listed before it
+				if (marked || !dumpEmpty) {
+					if (dump == untilDump) {
+						done = true;
+						return;
+					}
+					dump++;
+				}
+				marked = true;
+				return;
+			}
+			if (startsWith(window, start, end, SOURCE_COLUMN + COLUMN_SEPARATOR)) {
+				if (identifierColumns < 0) {
+					readHeader(window, start, end, fileName);
+				}
+				return;
+			}
+			if (identifierColumns < 0) {
+				throw new IOException(fileName + " does not start with the header of a dump");
+			}
+
+			int column = 0;
+			int keyEnd = end;
+			long alive = 0L;
+			long bytes = 0L;
+			int generations = 0;
+			int fieldStart = start;
+			for (int i = start; i <= end; i++) {
+				if (i < end && window.get(i) != COLUMN_SEPARATOR) {
+					continue;
+				}
+				if (column == identifierColumns - 1) {
+					keyEnd = i;
+				} else if (column == aliveColumn) {
+					alive = parseLong(window, fieldStart, i);
+				} else if (column == bytesColumn) {
+					bytes = parseLong(window, fieldStart, i);
+				} else if (column >= generationsColumn && survives(window, fieldStart, i)) {
+					generations++;
+				}
+				column++;
+				fieldStart = i + 1;
+			}
+			update(find(window, start, keyEnd), alive, bytes, generations);
+		}
+
+		private void update(final int site, final long alive, final long bytes, final int generations) {
+
+			if (!marked && lastDump[site] == dump && dumps[site] > 0) {
+				if (dump == untilDump) {
+					done = true;
+					return;
+				}
+				dump++;
+			}
+			if (dumps[site] > 0 && bytes > aliveBytes[site]) {
+				growingDumps[site]++;
+			}
+			dumpEmpty = false;
+			lastDump[site] = dump;
+			dumps[site]++;
+			aliveObjects[site] = alive;
+			aliveBytes[site] = bytes;
+			survivingGenerations[site] = generations;
+			sumX[site] += dump;
+			sumY[site] += bytes;
+			sumXY[site] += (double) dump * bytes;
+			sumXX[site] += (double) dump * dump;
+		}
+
+		private static boolean startsWith(final MappedByteBuffer window, final int start, final int end,
+				final String first) {
+
+			if (end - start < first.length()) {
+				return false;
+			}
+			for (int i = 0; i < first.length(); i++) {
+				if (window.get(start + i) != first.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void readHeader(final MappedByteBuffer window, final int start, final int end, final String fileName)
+				throws IOException {
+
+			final byte[] line = new byte[end - start];
+			for (int i = 0; i < line.length; i++) {
+				line[i] = window.get(start + i);
+			}
+			final List<String> columns = Arrays.asList(new String(line, Charset.defaultCharset())
+					.split(String.valueOf(COLUMN_SEPARATOR), -1));
+			final int context = columns.indexOf(CONTEXT_COLUMN);
+			final int thread = columns.indexOf(THREAD_COLUMN);
+			identifierColumns = (thread >= 0) ? thread + 1 : (context >= 0) ? context + 1 : 2;
+			keyPadding = (thread >= 0) ? "" : (context >= 0) ? String.valueOf(COLUMN_SEPARATOR)
+					: String.valueOf(COLUMN_SEPARATOR) + COLUMN_SEPARATOR;
+			aliveColumn = columns.indexOf(ALIVE_OBJECTS_COLUMN);
+			bytesColumn = columns.indexOf(ALLOCATED_BYTES_COLUMN);
+			generationsColumn = columns.indexOf(GENERATIONS_COLUMN);
+			if (aliveColumn < 0 || bytesColumn < 0 || generationsColumn < 0) {
+				throw new IOException(fileName + " lacks the columns " + ALIVE_OBJECTS_COLUMN + ", "
+						+ ALLOCATED_BYTES_COLUMN + " or " + GENERATIONS_COLUMN);
+			}
+		}
+
+		/**
+		 * @return whether a generation entry "generation=allocated:deallocated:collected" has objects left.
+		 */
+		private static boolean survives(final MappedByteBuffer window, final int start, final int end) {
+
+			int first = -1;
+			int last = -1;
+			for (int i = start; i < end; i++) {
+				if (window.get(i) == ':') {
+					if (first < 0) {
+						first = i;
+					}
+					last = i;
+				}
+			}
+			int equals = start;
+			while (equals < end && window.get(equals) != '=') {
+				equals++;
+			}
+			if (first < 0 || first == last || equals >= first) {
+				return false;
+			}
+			return parseLong(window, equals + 1, first) > parseLong(window, last + 1, end);
+		}
+
+		private static long parseLong(final MappedByteBuffer window, final int start, final int end) {
+
+			long value = 0L;
+			boolean negative = false;
+			for (int i = start; i < end; i++) {
+				final byte b = window.get(i);
+				if (b == '-') {
+					negative = true;
+				} else if (b >= '0' && b <= '9') {
+					value = 10 * value + (b - '0');
+				}
+			}
+			return negative ? -value : value;
+		}
+
+		/**
+		 * @return the index of the site with the given identifier columns, a new one if there is none yet.
+		 */
+		private int find(final MappedByteBuffer window, final int start, final int end) {
+
+			int hash = 0x811C9DC5;
+			for (int i = start; i < end; i++) {
+				hash = (hash ^ window.get(i)) * 0x01000193;
+			}
+			final int mask = table.length - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				final int site = table[slot];
+				if (site == NO_SITE) {
+					return add(window, start, end, hash, slot);
+				}
+				if (hashes[site] == hash && equalsKey(site, window, start, end)) {
+					return site;
+				}
+			}
+		}
+
+		private boolean equalsKey(final int site, final MappedByteBuffer window, final int start, final int end) {
+
+			if (keyLengths[site] != end - start) {
+				return false;
+			}
+			final int offset = keyOffsets[site] - start;
+			for (int i = start; i < end; i++) {
+				if (keys[offset + i] != window.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int add(final MappedByteBuffer window, final int start, final int end, final int hash, final int slot) {
+
+			if (sites == hashes.length) {
+				grow();
+			}
+			if (keysLength + (end - start) > keys.length) {
+				keys = Arrays.copyOf(keys, Math.max(2 * keys.length, keysLength + (end - start)));
+			}
+			final int site = sites++;
+			for (int i = start; i < end; i++) {
+				keys[keysLength++] = window.get(i);
+			}
+			keyOffsets[site] = keysLength - (end - start);
+			keyLengths[site] = end - start;
+			hashes[site] = hash;
+			lastDump[site] = dump;
+			// load factor of at most 1/2: grow() keeps the table twice as large as the site arrays
+			table[slot] = site;
+			return site;
+		}
+
+		private void grow() {
+
+			final int capacity = 2 * hashes.length;
+			hashes = Arrays.copyOf(hashes, capacity);
+			keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+			keyLengths = Arrays.copyOf(keyLengths, capacity);
+			lastDump = Arrays.copyOf(lastDump, capacity);
+			dumps = Arrays.copyOf(dumps, capacity);
+			growingDumps = Arrays.copyOf(growingDumps, capacity);
+			survivingGenerations = Arrays.copyOf(survivingGenerations, capacity);
+			aliveObjects = Arrays.copyOf(aliveObjects, capacity);
+			aliveBytes = Arrays.copyOf(aliveBytes, capacity);
+			sumX = Arrays.copyOf(sumX, capacity);
+			sumY = Arrays.copyOf(sumY, capacity);
+			sumXY = Arrays.copyOf(sumXY, capacity);
+			sumXX = Arrays.copyOf(sumXX, capacity);
+			table = newTable(2 * capacity);
+			final int mask = table.length - 1;
+			for (int site = 0; site < sites; site++) {
+				int slot = hashes[site] & mask;
+				while (table[slot] != NO_SITE) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = site;
+			}
+		}
+
+		private static int[] newTable(final int capacity) {
+
+			final int[] table = new int[capacity];
+			Arrays.fill(table, NO_SITE);
+			return table;
+		}
+
+		/**
+		 * @return the index of the site of another file with the same identifier columns in this file, -1 if there is
+		 * 			none. Both files hash the columns the same way.
+		 */
+		int find(final FileAnalysis other, final int otherSite) {
+
+			final int hash = other.hashes[otherSite];
+			final int length = other.keyLengths[otherSite];
+			final int mask = table.length - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				final int site = table[slot];
+				if (site == NO_SITE) {
+					return NO_SITE;
+				}
+				if (hashes[site] == hash && keyLengths[site] == length && equalsKey(site, other, otherSite)) {
+					return site;
+				}
+			}
+		}
+
+		private boolean equalsKey(final int site, final FileAnalysis other, final int otherSite) {
+
+			final int offset = keyOffsets[site];
+			final int otherOffset = other.keyOffsets[otherSite];
+			for (int i = 0; i < keyLengths[site]; i++) {
+				if (keys[offset + i] != other.keys[otherOffset + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the number of sites found in the parsed dumps.
+		 */
+		int getSites() {
+			return sites;
+		}
+
+		/**
+		 * @return the number of dumps parsed.
+		 */
+		int getDumps() {
+			return (sites == 0) ? 0 : dump + 1;
+		}
+
+		/**
+		 * @return whether the site has a line in the given dump.
+		 */
+		boolean isInDump(final int site, final int dump) {
+			return lastDump[site] == dump && dumps[site] > 0;
+		}
+
+		/**
+		 * @return the identifier columns of the site.
+		 */
+		String getKey(final int site) {
+			return new String(keys, keyOffsets[site], keyLengths[site], Charset.defaultCharset()) + keyPadding;
+		}
+
+		/**
+		 * @return the alive objects of the site in its latest dump.
+		 */
+		long getAliveObjects(final int site) {
+			return aliveObjects[site];
+		}
+
+		/**
+		 * @return the live bytes of the site in its latest dump.
+		 */
+		long getAliveBytes(final int site) {
+			return aliveBytes[site];
+		}
+
+		/**
+		 * @return the least-squares slope of the live bytes of the site over the dumps, 0 for a single dump.
+		 */
+		double slope(final int site) {
+
+			final int n = dumps[site];
+			final double denominator = n * sumXX[site] - sumX[site] * sumX[site];
+			return (n < 2 || denominator == 0) ? 0.0 : (n * sumXY[site] - sumX[site] * sumY[site]) / denominator;
+		}
+
+		boolean isSuspect(final int site) {
+
+			return dumps[site] > 1 && growingDumps[site] >= SUSPECT_GROWING_FRACTION * (dumps[site] - 1)
+					&& survivingGenerations[site] >= SUSPECT_GENERATIONS;
+		}
+
+		/**
+		 * @param fileName - printed in the first column.
+		 * @param top - number of sites returned.
+		 * @return the lines of the sites with the steepest slopes, steepest first.
+		 */
+		List<String> rank(final String fileName, final int top) {
+
+			final Comparator<Integer> bySlope = new Comparator<Integer>() {
+
+				@Override
+				public int compare(final Integer a, final Integer b) {
+					return Double.compare(slope(a), slope(b));
+				}
+			};
+			// the flattest of the steepest sites seen so far is at the head
+			final PriorityQueue<Integer> steepest = new PriorityQueue<Integer>(top, bySlope);
+			for (int site = 0; site < sites; site++) {
+				if (steepest.size() < top) {
+					steepest.add(site);
+				} else if (slope(site) > slope(steepest.peek())) {
+					steepest.poll();
+					steepest.add(site);
+				}
+			}
+			final Integer[] ranked = steepest.toArray(new Integer[steepest.size()]);
+			Arrays.sort(ranked, Collections.reverseOrder(bySlope));
+
+			final List<String> lines = new ArrayList<String>(ranked.length);
+			for (int site : ranked) {
+				lines.add(fileName + COLUMN_SEPARATOR + getKey(site)
+						+ COLUMN_SEPARATOR + dumps[site] + COLUMN_SEPARATOR + aliveObjects[site] + COLUMN_SEPARATOR
+						+ aliveBytes[site] + COLUMN_SEPARATOR + String.format(Locale.ROOT, "%.2f", slope(site))
+						+ COLUMN_SEPARATOR + growingDumps[site] + COLUMN_SEPARATOR + survivingGenerations[site]
+						+ COLUMN_SEPARATOR + isSuspect(site));
+			}
+			return lines;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package org.uniHD.memory.util;
+
+import com.google.common.flogger.FluentLogger;
+import org.uniHD.memory.CallingContextTree;
+import org.uniHD.memory.LiveObjectMap;
+import org.uniHD.memory.LiveObjectMap.AllocationSiteDetails;
+import org.uniHD.memory.ThreadDimension;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+
+/**
+ * Writes a final snapshot of the allocation sites when the old generation crosses an occupancy threshold and when the
+ * JVM shuts down, so the data survives an OutOfMemoryError of the monitored application.
+ *
+ * Everything the snapshot needs is prepared when the report is installed: the file is open, the output buffer is a
+ * preallocated direct buffer, numbers and strings are encoded into it by hand and the counters of a site are copied into
+ * a preallocated array. Writing the snapshot allocates nothing but the iterator over the sites; a heap reserve of
+ * RESERVE_BYTES is released before writing to leave room for that and for the JVM's own allocations. Every snapshot
+ * overwrites the previous one, so the file always holds the latest.
+ */
+public final class FinalReport {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+	private final static int BUFFER_BYTES = 64 * 1024;
+	private final static int RESERVE_BYTES = 1024 * 1024;
+
+	private final static String HEADER = "Source" + COLUMN_SEPARATOR +
+										 "Class" + COLUMN_SEPARATOR +
+										 "Context" + COLUMN_SEPARATOR +
+										 "Thread" + COLUMN_SEPARATOR +
+										 "#AliveObjects" + COLUMN_SEPARATOR +
+										 "#AllocatedObjects" + COLUMN_SEPARATOR +
+										 "#DeAllocatedObjects" + COLUMN_SEPARATOR +
+										 "Allocated Memory (bytes)" + COLUMN_SEPARATOR +
+										 "#HumongousObjects" + COLUMN_SEPARATOR +
+										 "Humongous Memory (bytes)" + COLUMN_SEPARATOR +
+										 "Sampling Interval" + COLUMN_SEPARATOR +
+										 "#UntrackedObjects" + "\n";
+
+	private static FinalReport instance;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+	private final long[] counters = new long[AllocationSiteDetails.NUM_COUNTERS];
+	// digits of a number in reverse order
+	private final byte[] digits = new byte[20];
+	private byte[] reserve = new byte[RESERVE_BYTES];
+
+	private FinalReport(final File file) throws IOException {
+
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * Opens the report file, registers usage-threshold notifications of all heap pools which support them (the old
+	 * generation, not eden or survivor spaces) and a shutdown hook. Installing it a second time has no effect.
+	 *
+	 * @param fileName - the report file.
+	 * @param thresholdPercent - occupancy of a pool, in percent of its maximum, from which on the snapshot is written.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public static synchronized void install(final String fileName, final int thresholdPercent) throws IOException {
+
+		if (instance != null) {
+			return;
+		}
+		if (thresholdPercent < 1 || thresholdPercent > 100) {
+			throw new IllegalArgumentException("Threshold must be a percentage, got " + thresholdPercent);
+		}
+		final FinalReport report = new FinalReport(new File(fileName));
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			final long max = pool.getUsage().getMax();
+			if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported() || max <= 0) {
+				continue;
+			}
+			pool.setUsageThreshold(max / 100 * thresholdPercent);
+			if (pool.isCollectionUsageThresholdSupported()) {
+				pool.setCollectionUsageThreshold(max / 100 * thresholdPercent);
+			}
+			logger.atFine().log("Final report when %s exceeds %d%% of %d bytes", pool.getName(), thresholdPercent, max);
+		}
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(new NotificationListener() {
+
+			/*
+			 * (non-Javadoc)
+			 * @see javax.management.NotificationListener#handleNotification(javax.management.Notification, java.lang.Object)
+			 */
+			@Override
+			public void handleNotification(final Notification notification, final Object handback) {
+				if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(notification.getType())
+						|| MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+					report.write();
+				}
+			}
+		}, null, null);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				report.write();
+			}
+		}, "MemDefender-FinalReport"));
+		instance = report;
+	}
+
+	/**
+	 * Writes the snapshot, replacing the previous one. Errors are swallowed: the monitored JVM is likely dying anyway.
+	 */
+	synchronized void write() {
+
+		reserve = null;
+		try {
+			channel.position(0L);
+			buffer.clear();
+			putString(HEADER);
+			for (AllocationSiteDetails site : LiveObjectMap.sites()) {
+				site.copyCounters(counters);
+				putString(site.getSource());
+				putChar(COLUMN_SEPARATOR);
+				putString(site.getClazz());
+				putChar(COLUMN_SEPARATOR);
+				for (int node = site.getContext(); node != CallingContextTree.ROOT; ) {
+					putString(CallingContextTree.frame(node));
+					if ((node = CallingContextTree.parent(node)) != CallingContextTree.ROOT) {
+						putChar(CallingContextTree.FRAME_SEPARATOR);
+					}
+				}
+				putChar(COLUMN_SEPARATOR);
+				putString(ThreadDimension.name(site.getThread()));
+				for (long counter : counters) {
+					putChar(COLUMN_SEPARATOR);
+					putLong(counter);
+				}
+				putChar('\n');
+			}
+			flush();
+			channel.truncate(channel.position());
+			channel.force(false);
+		} catch (Throwable t) {
+			// nothing left to report with, not even a log message may be affordable
+		}
+	}
+
+	private void putString(final String s) throws IOException {
+
+		for (int i = 0; i < s.length(); i++) {
+			putChar(s.charAt(i));
+		}
+	}
+
+	/**
+	 * Writes a character as ISO-8859-1, '?' for characters outside of it.
+	 */
+	private void putChar(final char c) throws IOException {
+
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put((byte) (c <= 0xFF ? c : '?'));
+	}
+
+	private void putLong(long value) throws IOException {
+
+		if (value < 0) {
+			putChar('-');
+		}
+		int length = 0;
+		do {
+			digits[length++] = (byte) ('0' + Math.abs(value % 10));
+			value /= 10;
+		} while (value != 0);
+		while (length > 0) {
+			putChar((char) digits[--length]);
+		}
+	}
+
+	private void flush() throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
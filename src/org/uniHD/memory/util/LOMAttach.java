@@ -0,0 +1,55 @@
+package org.uniHD.memory.util;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+/**
+ * Attaches the agent to a running JVM, or switches the monitoring of an attached agent on or off.
+ *
+ * The attach API (com.sun.tools.attach) is accessed reflectively, so the agent does not depend on it at compile
+ * time. With Java 8 it lives in the tools.jar of the JDK, which must be on the class path:
+ * java -cp MemDefender.jar:$JAVA_HOME/lib/tools.jar org.uniHD.memory.util.LOMAttach <pid> <agent arguments>
+ */
+public class LOMAttach {
+
+	/**
+	 * @param args - [0] process id of the target JVM, [1] the agent arguments as given to -javaagent, or "enable" resp.
+	 * 				"disable" for an agent which is attached already.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length != 2) {
+			System.out.println("usage: java -cp MemDefender.jar[:<jdk>/lib/tools.jar] " + LOMAttach.class.getName()
+					+ " <pid> <agent arguments>|enable|disable");
+			System.exit(1);
+		}
+		final File agentJar = new File(LOMAttach.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		attach(args[0], agentJar.getAbsolutePath(), args[1]);
+		System.out.println("Agent " + agentJar + " loaded into " + args[0]);
+	}
+
+	/**
+	 * @param pid - process id of the target JVM.
+	 * @param agentJar - absolute path of the agent jar.
+	 * @param agentArgs
+	 * @throws Exception if the attach API is not available or the agent could not be loaded.
+	 */
+	public static void attach(final String pid, final String agentJar, final String agentArgs) throws Exception {
+
+		final Class<?> vmClass;
+		try {
+			vmClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("The attach API is not available, add the tools.jar of the JDK to the "
+					+ "class path", e);
+		}
+		final Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+		try {
+			final Method loadAgent = vmClass.getMethod("loadAgent", String.class, String.class);
+			loadAgent.invoke(vm, agentJar, agentArgs);
+		} finally {
+			vmClass.getMethod("detach").invoke(vm);
+		}
+	}
+}
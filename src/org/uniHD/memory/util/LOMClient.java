@@ -1,11 +1,20 @@
 package org.uniHD.memory.util;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Simple client for triggering a dump of live objects into a passed local file.
@@ -17,62 +26,134 @@ import java.net.Socket;
 public class LOMClient {
 
 	/**
-	 * @param args - [0] file name to dump to
+	 * @param args - [0] file name to dump to, [1] experiment info; or [0] a control command starting with 
+	 * 				{@link Constants#COMMAND_PREFIX}, e.g. #metrics, [1] optional port
 	 * @throws Exception 
 	 */
 	public static void main(String[] args) throws Exception {
 		
+		if (args.length > 0 && args[0].startsWith(Constants.COMMAND_PREFIX)) {
+			
+			final int port = (args.length > 1) ? Integer.parseInt(args[1]) : Constants.SERVER_PORT;
+			sendCommand(port, args[0], System.out);
+			System.exit(0);
+		}
+		
 		// check argument validity
 		if (args.length > 2 || args.length < 2) {
 			
 			System.err.println("Wrong number of Arguments!");
 			System.out.println("usage: java -jar LOMClient.jar <fileName> <experimentInfo>");
+			System.out.println("       java -jar LOMClient.jar " + Constants.COMMAND_PREFIX + "<command> [<port>]");
 			System.exit(1);
 		}
 		
 		System.exit(createSnapshots(args[0], args[1]));
 	}
 	
+	/**
+	 * Requests a dump from every agent on the local host; the agents are discovered and contacted concurrently, see
+	 * {@link LOMCollector#discover(int)}.
+	 * 
+	 * @param fileName
+	 * @param expInfo
+	 * @return the sum of the status codes of the agents, 0 if all dumps succeeded.
+	 * @throws Exception if no agent could be contacted.
+	 */
 	public static int createSnapshots(final String fileName, final String expInfo) throws Exception {
 		
-		int portModifier = 0;
-		int exitCode = 0;
-		
-		while (portModifier >= 0) {
-			final Socket serverSocket = new Socket();
-			try {
-				serverSocket.connect(new InetSocketAddress(InetAddress.getByName(null), 
-														   Constants.SERVER_PORT + portModifier));
-				portModifier++;
-			} catch (Exception e) {
-				
-				// we could not even contact one server
-				if (portModifier == 0) {
-					throw e;
-			
-				// all available servers have been contacted
-				} else {
-					break;
+		final List<Integer> ports = LOMCollector.discover(LOMCollector.DEFAULT_PORTS);
+		if (ports.isEmpty()) {
+			throw new ConnectException("No agent listening on port " + Constants.SERVER_PORT);
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(ports.size());
+		try {
+			final List<Future<Integer>> exitCodes = new ArrayList<Future<Integer>>();
+			for (final Integer port : ports) {
+				exitCodes.add(executor.submit(new Callable<Integer>() {
+					
+					@Override
+					public Integer call() throws IOException {
+						return createSnapshot(port, fileName, expInfo);
+					}
+				}));
+			}
+			int exitCode = 0;
+			for (Future<Integer> code : exitCodes) {
+				try {
+					exitCode += code.get();
+				} catch (ExecutionException e) {
+					// the agent went away in between
+					exitCode++;
 				}
 			}
-			final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
-			final InputStreamReader reader = new InputStreamReader(serverSocket.getInputStream());
-			try {
-				
-				// send the fileName to the server
-				writer.write(fileName + Constants.MESSAGE_SEPARATOR + expInfo);
-				writer.newLine();
-				writer.flush();
-				
-				// receive the exit code
-				exitCode += reader.read();
+			return exitCode;
+		} finally {
+			executor.shutdown();
+		}
+	}
 	
-			} finally {
-				if (reader != null) reader.close();
-				if (writer != null) writer.close();
-				serverSocket.close();
+	private static int createSnapshot(final int port, final String fileName, final String expInfo) throws IOException {
+		
+		final Socket serverSocket = new Socket(InetAddress.getByName(null), port);
+		final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
+		final InputStreamReader reader = new InputStreamReader(serverSocket.getInputStream());
+		try {
+			
+			// send the fileName to the server
+			writer.write(fileName + Constants.MESSAGE_SEPARATOR + expInfo);
+			writer.newLine();
+			writer.flush();
+			
+			// receive the exit code
+			return reader.read();
+			
+		} finally {
+			reader.close();
+			writer.close();
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Sends a control command to the server listening at the given local port.
+	 * 
+	 * @param port
+	 * @param command - including the {@link Constants#COMMAND_PREFIX}.
+	 * @return the complete response of the server.
+	 * @throws IOException
+	 */
+	public static String sendCommand(final int port, final String command) throws IOException {
+		
+		final StringBuilder response = new StringBuilder();
+		sendCommand(port, command, response);
+		return response.toString();
+	}
+
+	/**
+	 * Sends a control command to the server listening at the given local port and appends the response line by line
+	 * while it arrives, e.g. a snapshot to a file or the console.
+	 * 
+	 * @param port
+	 * @param command - including the {@link Constants#COMMAND_PREFIX}.
+	 * @param response
+	 * @throws IOException
+	 */
+	public static void sendCommand(final int port, final String command, final Appendable response) throws IOException {
+		
+		final Socket serverSocket = new Socket(InetAddress.getByName(null), port);
+		try {
+			final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
+			writer.write(command);
+			writer.newLine();
+			writer.flush();
+			
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				response.append(line).append('\n');
 			}
+		} finally {
+			serverSocket.close();
 		}
-		return exitCode;
 	}
-}
\ No newline at end of file
+}
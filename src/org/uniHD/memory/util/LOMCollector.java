@@ -0,0 +1,395 @@
+package org.uniHD.memory.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.uniHD.memory.util.Constants.ALIVE_OBJECTS_COLUMN;
+import static org.uniHD.memory.util.Constants.ALLOCATED_BYTES_COLUMN;
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+import static org.uniHD.memory.util.Constants.COMMAND_PREFIX;
+import static org.uniHD.memory.util.Constants.CONTEXT_COLUMN;
+import static org.uniHD.memory.util.Constants.FILE_EXTENSION;
+import static org.uniHD.memory.util.Constants.MESSAGE_SEPARATOR;
+import static org.uniHD.memory.util.Constants.SERVER_PORT;
+import static org.uniHD.memory.util.Constants.SOURCE_COLUMN;
+import static org.uniHD.memory.util.Constants.THREAD_COLUMN;
+
+/**
+ * Collects snapshots of all agents running on the local host at once. The ports of the agents are probed concurrently,
+ * every agent streams its snapshot over the control channel ("#snapshot") into its own file, and all snapshots are
+ * merged into one cluster-wide table with one line per allocation site (source,class,context,thread) summed over the agents.
+ * The lines of an agent are summed up on its own and merged only once its snapshot is complete, so the table holds
+ * exactly the agents which answered within the timeout.
+ * Contrary to {@link LOMClient#createSnapshots(String, String)}, a slow agent neither delays the others nor, thanks
+ * to the timeout, the whole collection.
+ *
+ * usage: LOMCollector <fileName> [-ports <n>] [-timeout <ms>] [-gc]
+ */
+public class LOMCollector {
+
+	/**
+	 * Number of ports probed, starting at {@link Constants#SERVER_PORT}.
+	 */
+	public final static int DEFAULT_PORTS = 64;
+	public final static long DEFAULT_TIMEOUT_MILLIS = 30000;
+	private final static int CONNECT_TIMEOUT_MILLIS = 500;
+
+	/**
+	 * Columns which are summed up over the agents; the histogram columns are merged bucket by bucket.
+	 */
+	private final static String[] COUNTER_COLUMNS = { ALIVE_OBJECTS_COLUMN, "#AllocatedObjects", "#DeAllocatedObjects",
+			ALLOCATED_BYTES_COLUMN, "#HumongousObjects", "Humongous Memory (bytes)",
+			"#UntrackedObjects" };
+	private final static String[] HISTOGRAM_COLUMNS = { "Object Size (bytes)", "Array Length",
+			"Lifetime (generations)", "Lifetime (ms)" };
+
+	private final int ports;
+	private final long timeoutMillis;
+	private final boolean forceGc;
+	// only accessed by the thread calling collect(String), which merges the complete snapshots
+	private final Map<String, MergedSite> sites = new TreeMap<String, MergedSite>();
+
+	public LOMCollector(final int ports, final long timeoutMillis, final boolean forceGc) {
+
+		this.ports = ports;
+		this.timeoutMillis = timeoutMillis;
+		this.forceGc = forceGc;
+	}
+
+	/**
+	 * @param args - [0] file name prefix of the snapshots, followed by the options.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int ports = DEFAULT_PORTS;
+		long timeout = DEFAULT_TIMEOUT_MILLIS;
+		boolean gc = false;
+		int i = 1;
+		for (; i < args.length; i++) {
+			if (args[i].equals("-ports") && i + 1 < args.length) {
+				ports = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-timeout") && i + 1 < args.length) {
+				timeout = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-gc")) {
+				gc = true;
+			} else {
+				break;
+			}
+		}
+		if (args.length < 1 || i < args.length) {
+			System.out.println("usage: java -cp MemDefender.jar " + LOMCollector.class.getName()
+					+ " <fileName> [-ports <n>] [-timeout <ms>] [-gc]");
+			System.exit(1);
+		}
+
+		System.exit(new LOMCollector(ports, timeout, gc).collect(args[0]));
+	}
+
+	/**
+	 * Discovers the local agents, collects their snapshots concurrently into the files fileName.port.csv and writes
+	 * the merged table to fileName.csv.
+	 *
+	 * @param fileName
+	 * @return the number of agents which failed or timed out.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int collect(final String fileName) throws IOException, InterruptedException {
+
+		final List<Integer> agents = discover(ports);
+		if (agents.isEmpty()) {
+			System.err.println("No agent found on ports " + SERVER_PORT + "-" + (SERVER_PORT + ports - 1));
+			return 1;
+		}
+
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		final ExecutorService executor = Executors.newFixedThreadPool(agents.size());
+		final List<Future<Map<String, MergedSite>>> results = new ArrayList<Future<Map<String, MergedSite>>>();
+		final List<Socket> sockets = new ArrayList<Socket>();
+		int failed = 0;
+		try {
+			for (final Integer port : agents) {
+				final Socket socket = new Socket();
+				sockets.add(socket);
+				results.add(executor.submit(new Callable<Map<String, MergedSite>>() {
+
+					@Override
+					public Map<String, MergedSite> call() throws Exception {
+						return collect(socket, port, new File(fileName + "." + port + FILE_EXTENSION));
+					}
+				}));
+			}
+
+			for (int i = 0; i < agents.size(); i++) {
+				try {
+					final Map<String, MergedSite> agentSites = results.get(i).get(
+							Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					merge(agentSites);
+					System.out.println("Agent on port " + agents.get(i) + ": " + agentSites.size() + " allocation sites");
+				} catch (TimeoutException e) {
+					failed++;
+					System.err.println("Agent on port " + agents.get(i) + " timed out after " + timeoutMillis + " ms");
+					// unblocks the reading thread, whose lines are dropped
+					results.get(i).cancel(true);
+					sockets.get(i).close();
+				} catch (ExecutionException e) {
+					failed++;
+					System.err.println("Agent on port " + agents.get(i) + " failed: " + e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		// the reading threads of agents which timed out end with their closed sockets
+		if (!executor.awaitTermination(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			System.err.println("Reading threads still running, their snapshots are left out");
+		}
+
+		writeMerged(new File(fileName + FILE_EXTENSION), agents.size() - failed);
+		return failed;
+	}
+
+	/**
+	 * Probes the given number of ports following {@link Constants#SERVER_PORT} concurrently.
+	 *
+	 * @param ports
+	 * @return the ports an agent is listening on, in ascending order.
+	 * @throws InterruptedException
+	 */
+	public static List<Integer> discover(final int ports) throws InterruptedException {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(ports, 16));
+		try {
+			final List<Future<Boolean>> probes = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < ports; i++) {
+				final int port = SERVER_PORT + i;
+				probes.add(executor.submit(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						final Socket socket = new Socket();
+						try {
+							socket.connect(new InetSocketAddress(InetAddress.getByName(null), port), CONNECT_TIMEOUT_MILLIS);
+							return true;
+						} catch (IOException e) {
+							return false;
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+								// ignored
+							}
+						}
+					}
+				}));
+			}
+			final List<Integer> result = new ArrayList<Integer>();
+			for (int i = 0; i < ports; i++) {
+				try {
+					if (probes.get(i).get()) {
+						result.add(SERVER_PORT + i);
+					}
+				} catch (ExecutionException e) {
+					// not listening
+				}
+			}
+			return result;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Requests the snapshot of one agent, writes it to the given file while it is received and sums up its lines.
+	 *
+	 * @return the lines of the agent per allocation site, to be merged once the snapshot is complete.
+	 */
+	private Map<String, MergedSite> collect(final Socket socket, final int port, final File file) throws IOException {
+
+		socket.connect(new InetSocketAddress(InetAddress.getByName(null), port), CONNECT_TIMEOUT_MILLIS);
+		socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeoutMillis));
+		final BufferedWriter request = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			request.write(COMMAND_PREFIX + "snapshot" + (forceGc ? MESSAGE_SEPARATOR + "gc" : ""));
+			request.newLine();
+			request.flush();
+
+			final String header = reader.readLine();
+			if (header == null || header.startsWith("error=")) {
+				throw new IOException("no snapshot received: " + header);
+			}
+			writer.write(header);
+			writer.newLine();
+			final List<String> columns = Arrays.asList(header.split(String.valueOf(COLUMN_SEPARATOR)));
+			final int[] counters = indexesOf(columns, COUNTER_COLUMNS);
+			final int[] histograms = indexesOf(columns, HISTOGRAM_COLUMNS);
+			final int context = columns.indexOf(CONTEXT_COLUMN);
+			final int thread = columns.indexOf(THREAD_COLUMN);
+
+			final Map<String, MergedSite> agentSites = new HashMap<String, MergedSite>();
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				writer.write(line);
+				writer.newLine();
+				add(agentSites, line.split(String.valueOf(COLUMN_SEPARATOR)), context, thread, counters, histograms);
+			}
+			return agentSites;
+		} finally {
+			writer.close();
+			socket.close();
+		}
+	}
+
+	private static void add(final Map<String, MergedSite> agentSites, final String[] values, final int context,
+			final int thread, final int[] counters, final int[] histograms) {
+
+		final String key = values[0] + COLUMN_SEPARATOR + values[1] + COLUMN_SEPARATOR
+				+ (context >= 0 && context < values.length ? values[context] : "") + COLUMN_SEPARATOR
+				+ (thread >= 0 && thread < values.length ? values[thread] : "");
+		MergedSite site = agentSites.get(key);
+		if (site == null) {
+			site = new MergedSite();
+			agentSites.put(key, site);
+		}
+		site.add(values, counters, histograms);
+	}
+
+	/**
+	 * Adds the complete snapshot of one agent to the merged table.
+	 */
+	private void merge(final Map<String, MergedSite> agentSites) {
+
+		for (Map.Entry<String, MergedSite> entry : agentSites.entrySet()) {
+			final MergedSite site = sites.get(entry.getKey());
+			if (site == null) {
+				sites.put(entry.getKey(), entry.getValue());
+			} else {
+				site.add(entry.getValue());
+			}
+		}
+	}
+
+	private void writeMerged(final File file, final int agents) throws IOException {
+
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write(SOURCE_COLUMN + COLUMN_SEPARATOR + "Class" + COLUMN_SEPARATOR + CONTEXT_COLUMN + COLUMN_SEPARATOR
+					+ THREAD_COLUMN + COLUMN_SEPARATOR + "#Agents");
+			for (String column : COUNTER_COLUMNS) {
+				writer.write(COLUMN_SEPARATOR + column);
+			}
+			for (String column : HISTOGRAM_COLUMNS) {
+				writer.write(COLUMN_SEPARATOR + column);
+			}
+			writer.newLine();
+			for (Map.Entry<String, MergedSite> entry : sites.entrySet()) {
+				writer.write(entry.getKey() + COLUMN_SEPARATOR + entry.getValue());
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		System.out.println("Merged " + sites.size() + " allocation sites of " + agents + " agents into " + file);
+	}
+
+	/**
+	 * @return the index of each of the given columns in the header, -1 for columns the agent does not report.
+	 */
+	private static int[] indexesOf(final List<String> header, final String[] columns) {
+
+		final int[] result = new int[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			result[i] = header.indexOf(columns[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Sums of one allocation site over all agents.
+	 */
+	private final static class MergedSite {
+
+		private int agents;
+		private final long[] counters = new long[COUNTER_COLUMNS.length];
+		private final long[][] histograms = new long[HISTOGRAM_COLUMNS.length][LogHistogram.MAX_BUCKETS];
+
+		private void add(final String[] values, final int[] counterIndexes, final int[] histogramIndexes) {
+
+			agents++;
+			for (int i = 0; i < counterIndexes.length; i++) {
+				if (counterIndexes[i] >= 0 && counterIndexes[i] < values.length) {
+					counters[i] += Long.parseLong(values[counterIndexes[i]]);
+				}
+			}
+			for (int i = 0; i < histogramIndexes.length; i++) {
+				if (histogramIndexes[i] >= 0 && histogramIndexes[i] < values.length && !values[histogramIndexes[i]].isEmpty()) {
+					// "bucket:count" pairs separated by ';', see LogHistogram#toString()
+					for (String pair : values[histogramIndexes[i]].split(";")) {
+						final int colon = pair.indexOf(':');
+						histograms[i][Integer.parseInt(pair.substring(0, colon))] += Long.parseLong(pair.substring(colon + 1));
+					}
+				}
+			}
+		}
+
+		private void add(final MergedSite other) {
+
+			agents += other.agents;
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] += other.counters[i];
+			}
+			for (int i = 0; i < histograms.length; i++) {
+				for (int bucket = 0; bucket < histograms[i].length; bucket++) {
+					histograms[i][bucket] += other.histograms[i][bucket];
+				}
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+
+			final StringBuilder result = new StringBuilder().append(agents);
+			for (long counter : counters) {
+				result.append(COLUMN_SEPARATOR).append(counter);
+			}
+			for (long[] histogram : histograms) {
+				result.append(COLUMN_SEPARATOR);
+				boolean first = true;
+				for (int bucket = 0; bucket < histogram.length; bucket++) {
+					if (histogram[bucket] != 0) {
+						result.append(first ? "" : ";").append(bucket).append(':').append(histogram[bucket]);
+						first = false;
+					}
+				}
+			}
+			return result.toString();
+		}
+	}
+}
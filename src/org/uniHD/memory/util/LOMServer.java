@@ -1,15 +1,37 @@
 package org.uniHD.memory.util;
 
+import com.google.common.flogger.FluentLogger;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.uniHD.memory.AllocationWindow;
+import org.uniHD.memory.GcTimeline;
+import org.uniHD.memory.LiveObjectMap;
+import org.uniHD.memory.LiveObjectMap.AllocationSiteDetails;
+import org.uniHD.memory.SiteKey;
+import org.uniHD.memory.ThreadDimension;
+import org.uniHD.memory.allocation.LiveObjectMonitoringSampler;
 
 import static org.uniHD.memory.util.LiveObjectDumpGenerator.dumpToFile;
+import static org.uniHD.memory.util.LiveObjectDumpGenerator.writeSites;
+import static org.uniHD.memory.util.LiveObjectDumpGenerator.writeSnapshot;
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
 import static org.uniHD.memory.util.Constants.FORCE_GC_BEFORE_DUMP;
 import static org.uniHD.memory.util.Constants.GC_WAITING_TIME;
 
@@ -21,7 +43,19 @@ import static org.uniHD.memory.util.Constants.GC_WAITING_TIME;
  */
 
 public class LOMServer extends Thread {
+	private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+	// sites listed by "trends" without a number, and epochs a site needs before it is ranked
+	private final static int	DEFAULT_TRENDS = 20;
+	private final static int	MIN_TREND_EPOCHS = 3;
+	// sites listed by "top" without a number
+	private final static int	DEFAULT_TOP = 20;
+	// counters "top" ranks by and their indexes in AllocationSiteDetails#copyCounters(long[])
+	private final static List<String>	TOP_COUNTERS = Arrays.asList("bytes", "objects", "allocations");
+	private final static int[]	TOP_COUNTER_INDEXES = { 3, 0, 1 };
+	// a client which does not send its line within this time is dropped, so it cannot block the next connections
+	private final static int	READ_TIMEOUT_MILLIS = 10000;
+	
 	private final ServerSocket	socket;
 	private final ThreadGroup 	applicationCtrl;
 	private final String 		appName;
@@ -36,7 +70,8 @@ public class LOMServer extends Thread {
 	public LOMServer(int port, final String appName) throws IOException {
 		// we need to ensure that the ThreadGroups of the LOMServer and application are orthogonal in respect to the 
 		// ThreadGroup hierarchy 
-		super(new ThreadGroup(Thread.currentThread().getThreadGroup().getParent(), "LOMEssentials"), "LOMServer");
+		// when the agent is attached at runtime, the current thread belongs to the root ThreadGroup "system"
+		super(new ThreadGroup(parentOf(Thread.currentThread().getThreadGroup()), "LOMEssentials"), "LOMServer");
 		setDaemon(true);
 		getThreadGroup().allowThreadSuspension(false);
 		
@@ -55,6 +90,11 @@ public class LOMServer extends Thread {
 		this.appName = appName;
 	}
 	
+	private static ThreadGroup parentOf(final ThreadGroup group) {
+		
+		return (group.getParent() != null) ? group.getParent() : group;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Thread#run()
@@ -68,34 +108,19 @@ public class LOMServer extends Thread {
 			for (;;) {
 				
 				final Socket clientSocket = this.socket.accept();
-				final BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-				final OutputStreamWriter writer = new OutputStreamWriter(clientSocket.getOutputStream());
 				try {
-					// pause the application, run the GC (to get more clean results)
-					// evil stuff is going on here, but we should be fine since the LOM and the application under study 
-					// do not interfere
-					if (FORCE_GC_BEFORE_DUMP) {
-						
-						applicationCtrl.suspend();
-					}
-					
-					System.gc();
-					sleep(GC_WAITING_TIME);
-					
-					// save the dumps to disk
-					String[] payload = reader.readLine().split("\\" + Constants.MESSAGE_SEPARATOR);
-					assert(payload.length == 2);
-					dumpToFile(appName + "." + payload[0], payload[1]);
-
-					// send status code
-					writer.write(0);
-					writer.flush();
-
+					serve(clientSocket);
+				} catch (IOException | RuntimeException e) {
+					// e.g. the client closed the connection while the response was streamed; the next one is served
+					logger.atWarning().withCause(e).log("Control connection failed, closing it");
 				} finally {
 					if (FORCE_GC_BEFORE_DUMP) applicationCtrl.resume();
-					if (reader != null) reader.close();
-					if (writer != null) writer.close();
-					clientSocket.close();
+					try {
+						
+						clientSocket.close();
+					} catch (IOException e) {
+						// ignored
+					}
 				}
 			}
 		} catch (Exception e) {
@@ -112,6 +137,272 @@ public class LOMServer extends Thread {
 		System.out.println("Live object dump service stopped.");
 	}
 	
+	/**
+	 * Reads the message of one connection and answers it. The streams are closed with the socket.
+	 * 
+	 * @param clientSocket
+	 * @throws IOException if the connection fails, e.g. because the client closed it or sent no line in time.
+	 * @throws InterruptedException if the server is interrupted while waiting for the GC.
+	 */
+	@SuppressWarnings("deprecation")
+	private void serve(final Socket clientSocket) throws IOException, InterruptedException {
+		
+		clientSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+		final OutputStreamWriter writer = new OutputStreamWriter(clientSocket.getOutputStream());
+		final String message = reader.readLine();
+		if (message == null) {
+			
+			// a probe of the agent discovery, see LOMCollector#discover(int)
+		} else if (message.startsWith(Constants.COMMAND_PREFIX)) {
+			
+			handleCommand(message.substring(Constants.COMMAND_PREFIX.length()), writer);
+		} else {
+			
+			// pause the application, run the GC (to get more clean results)
+			// evil stuff is going on here, but we should be fine since the LOM and the application under 
+			// study do not interfere
+			if (FORCE_GC_BEFORE_DUMP) {
+				
+				applicationCtrl.suspend();
+			}
+			
+			System.gc();
+			sleep(GC_WAITING_TIME);
+			
+			// save the dumps to disk
+			String[] payload = message.split("\\" + Constants.MESSAGE_SEPARATOR);
+			assert(payload.length == 2);
+			dumpToFile(appName + "." + payload[0], payload[1]);
+
+			// send status code
+			writer.write(0);
+			writer.flush();
+		}
+	}
+	
+	/**
+	 * Handles a control command, i.e. a message starting with {@link Constants#COMMAND_PREFIX}. Commands do not force a
+	 * GC (except "snapshot!gc") and answer with text lines, which are written while they are produced and end with the
+	 * connection; "snapshot" streams the dump in CSV format, "gc" the occupancy of the heap pools after the recent GCs
+	 * and "growth!<epoch>" the old generation growth since the epoch per site (see {@link GcTimeline}); "trends[!n]"
+	 * ranks the sites by the trend of their alive objects. "top[!n[!bytes|objects|allocations]]" streams the dump lines
+	 * of the n sites with the most live bytes (alive objects, allocated objects), "dump!<file>!<expInfo>" appends a dump
+	 * to a file as the legacy message does, but without GC. "reset" resets the cumulative counters of all sites, see
+	 * {@link LiveObjectMap#resetCounters()}, and "set!<key>=<value>" changes a setting of the agent, see
+	 * {@link LiveObjectMonitoringSampler#configure(String, String)}. "window!start|stop!<name>" opens resp. closes an
+	 * {@link AllocationWindow}, "window!<name>" streams its counters and "windows" lists all windows. Invalid commands
+	 * are answered with "error=...". "metrics!thread" totals the sites per thread dimension.
+	 * 
+	 * @param command - the message without prefix.
+	 * @param writer
+	 * @throws IOException
+	 */
+	private void handleCommand(final String command, final Writer writer) throws IOException {
+		
+		if (command.equals("metrics")) {
+			writer.write(AgentMetrics.toText());
+		} else if (command.equals("metrics" + Constants.MESSAGE_SEPARATOR + "thread")) {
+			writeThreadTotals(writer);
+		} else if (command.equals("enable") || command.equals("disable")) {
+			LiveObjectMonitoringSampler.setEnabled(command.equals("enable"));
+			writer.write("enabled=" + LiveObjectMonitoringSampler.isEnabled() + "\n");
+		} else if (command.equals("lifetimes")) {
+			writeLifetimes(writer);
+		} else if (command.equals("trends") || command.startsWith("trends" + Constants.MESSAGE_SEPARATOR)) {
+			try {
+				writeTrends(writer, command.equals("trends") ? DEFAULT_TRENDS
+						: Integer.parseInt(command.substring("trends".length() + 1)));
+			} catch (NumberFormatException e) {
+				writer.write("error=number of sites expected, got '" + command + "'\n");
+			}
+		} else if (command.equals("gc")) {
+			GcTimeline.writeTimeline(writer);
+		} else if (command.startsWith("growth" + Constants.MESSAGE_SEPARATOR)) {
+			try {
+				GcTimeline.writeGrowth(writer, Long.parseLong(command.substring("growth".length() + 1)));
+			} catch (NumberFormatException e) {
+				writer.write("error=epoch expected, got '" + command + "'\n");
+			}
+		} else if (command.equals("snapshot") || command.equals("snapshot" + Constants.MESSAGE_SEPARATOR + "gc")) {
+			if (command.endsWith("gc")) {
+				System.gc();
+				try {
+					sleep(GC_WAITING_TIME);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			writeSnapshot(writer);
+		} else if (command.equals("top") || command.startsWith("top" + Constants.MESSAGE_SEPARATOR)) {
+			final String[] arguments = command.split("\\" + Constants.MESSAGE_SEPARATOR);
+			final int counter = (arguments.length > 2) ? TOP_COUNTERS.indexOf(arguments[2]) : TOP_COUNTERS.indexOf("bytes");
+			try {
+				final int maxSites = (arguments.length > 1) ? Integer.parseInt(arguments[1]) : DEFAULT_TOP;
+				if (counter < 0 || arguments.length > 3) {
+					writer.write("error=top!<n>[!bytes|objects|allocations] expected, got '" + command + "'\n");
+				} else {
+					writeSites(writer, LiveObjectMap.top(maxSites, TOP_COUNTER_INDEXES[counter]));
+				}
+			} catch (NumberFormatException e) {
+				writer.write("error=number of sites expected, got '" + command + "'\n");
+			}
+		} else if (command.startsWith("dump" + Constants.MESSAGE_SEPARATOR)) {
+			final String[] payload = command.split("\\" + Constants.MESSAGE_SEPARATOR);
+			if (payload.length != 3) {
+				writer.write("error=dump!<file>!<expInfo> expected, got '" + command + "'\n");
+			} else {
+				try {
+					dumpToFile(appName + "." + payload[1], payload[2]);
+					writer.write("dump=" + appName + "." + payload[1] + Constants.FILE_EXTENSION + "\n");
+				} catch (IOException e) {
+					writer.write("error=" + e + "\n");
+				}
+			}
+		} else if (command.equals("windows")) {
+			for (AllocationWindow window : AllocationWindow.windows()) {
+				writer.write(window + "\n");
+			}
+		} else if (command.startsWith("window" + Constants.MESSAGE_SEPARATOR)) {
+			handleWindowCommand(command, writer);
+		} else if (command.equals("reset")) {
+			LiveObjectMap.resetCounters();
+			writer.write("reset=" + LiveObjectMap.numSummaryLines() + "\n");
+		} else if (command.startsWith("set" + Constants.MESSAGE_SEPARATOR) && command.indexOf('=') > 0) {
+			final String setting = command.substring("set".length() + 1);
+			final String key = setting.substring(0, setting.indexOf('=')).trim();
+			try {
+				LiveObjectMonitoringSampler.configure(key, setting.substring(setting.indexOf('=') + 1));
+				writer.write(setting + "\n");
+			} catch (IllegalArgumentException | IllegalStateException e) {
+				writer.write("error=" + e.getMessage() + "\n");
+			}
+		} else {
+			writer.write("error=unknown command '" + command + "'\n");
+		}
+		writer.flush();
+	}
+	
+	/**
+	 * Handles "window!start|stop|remove!<name>", which answer with the state of the window (see
+	 * {@link AllocationWindow#toString()}), and "window!<name>", which streams the counters of the window per site.
+	 * 
+	 * @param command
+	 * @param writer
+	 * @throws IOException
+	 */
+	private static void handleWindowCommand(final String command, final Writer writer) throws IOException {
+		
+		final String[] arguments = command.split("\\" + Constants.MESSAGE_SEPARATOR);
+		AllocationWindow window = null;
+		if (arguments.length == 2) {
+			window = AllocationWindow.get(arguments[1]);
+			if (window != null) {
+				writer.write(AllocationWindow.HEADER + "\n");
+				window.writeCounters(writer);
+				return;
+			}
+		} else if (arguments.length == 3 && arguments[1].equals("start")) {
+			try {
+				window = AllocationWindow.start(arguments[2]);
+			} catch (IllegalArgumentException e) {
+				writer.write("error=" + e.getMessage() + "\n");
+				return;
+			}
+		} else if (arguments.length == 3 && arguments[1].equals("stop")) {
+			window = AllocationWindow.stop(arguments[2]);
+		} else if (arguments.length == 3 && arguments[1].equals("remove")) {
+			window = AllocationWindow.remove(arguments[2]);
+		} else {
+			writer.write("error=window!start|stop|remove!<name> or window!<name> expected, got '" + command + "'\n");
+			return;
+		}
+		writer.write((window != null) ? window + "\n" : "error=no window '" + arguments[arguments.length - 1] + "'\n");
+	}
+	
+	/**
+	 * Writes the totals of the sites per thread dimension (see {@link ThreadDimension}), one
+	 * "thread,sites,aliveObjects,allocatedObjects,deallocatedObjects,liveBytes" line each after a header, most live bytes
+	 * first. While the dimension is switched off, all sites are totalled in one line with an empty thread.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	private static void writeThreadTotals(final Writer writer) throws IOException {
+		
+		final Map<Integer, long[]> totals = new HashMap<Integer, long[]>();
+		final long[] counters = new long[AllocationSiteDetails.NUM_COUNTERS];
+		for (AllocationSiteDetails site : LiveObjectMap.sites()) {
+			
+			site.copyCounters(counters);
+			long[] total = totals.get(site.getThread());
+			if (total == null) {
+				total = new long[5];
+				totals.put(site.getThread(), total);
+			}
+			total[0]++;
+			total[1] += counters[0];
+			total[2] += counters[1];
+			total[3] += counters[2];
+			total[4] += counters[3];
+		}
+		final List<Entry<Integer, long[]>> byBytes = new ArrayList<Entry<Integer, long[]>>(totals.entrySet());
+		Collections.sort(byBytes, new Comparator<Entry<Integer, long[]>>() {
+			
+			@Override
+			public int compare(final Entry<Integer, long[]> a, final Entry<Integer, long[]> b) {
+				return Long.compare(b.getValue()[4], a.getValue()[4]);
+			}
+		});
+		writer.write("Thread" + COLUMN_SEPARATOR + "#Sites" + COLUMN_SEPARATOR + "#AliveObjects" + COLUMN_SEPARATOR
+				+ "#AllocatedObjects" + COLUMN_SEPARATOR + "#DeAllocatedObjects" + COLUMN_SEPARATOR
+				+ "Allocated Memory (bytes)\n");
+		for (Entry<Integer, long[]> entry : byBytes) {
+			
+			writer.write(ThreadDimension.name(entry.getKey()));
+			for (long value : entry.getValue()) {
+				writer.write(COLUMN_SEPARATOR + Long.toString(value));
+			}
+			writer.write("\n");
+		}
+	}
+	
+	/**
+	 * Writes one "site,class,context,thread,generations,ms" line per allocation site with deallocated objects, the last two columns
+	 * being the lifetime histograms of the site as "bucket:count" pairs (bucket b counts lifetimes below 2^b).
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	private static void writeLifetimes(final Writer writer) throws IOException {
+		
+		for (Entry<SiteKey, AllocationSiteDetails> entry : LiveObjectMap.INSTANCE) {
+			
+			final LogHistogram generations = entry.getValue().getLifetimeGenerations();
+			final LogHistogram millis = entry.getValue().getLifetimeMillis();
+			if (generations != null && millis != null) {
+				writer.write(entry.getValue().toIdentifierColumns() + COLUMN_SEPARATOR + generations + COLUMN_SEPARATOR + millis + "\n");
+			}
+		}
+	}
+	
+	/**
+	 * Writes one "site,class,context,thread,epochs,slope,ewma,bytesPerEpoch" line for each of the given number of sites with
+	 * the steepest growth, see {@link AllocationSiteDetails.Trend}. Sites seen for fewer than MIN_TREND_EPOCHS epochs are
+	 * not ranked.
+	 * 
+	 * @param writer
+	 * @param maxSites
+	 * @throws IOException
+	 */
+	private static void writeTrends(final Writer writer, final int maxSites) throws IOException {
+		
+		for (AllocationSiteDetails.Trend trend : LiveObjectMap.trends(maxSites, MIN_TREND_EPOCHS)) {
+			
+			writer.write(trend + "\n");
+		}
+	}
+	
 	/**
 	 * Method to stop the server.
 	 * 
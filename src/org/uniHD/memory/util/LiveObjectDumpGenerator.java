@@ -1,16 +1,36 @@
 package org.uniHD.memory.util;
 
+import org.uniHD.memory.GcTimeline;
 import org.uniHD.memory.LiveObjectMap;
 import org.uniHD.memory.LiveObjectMap.AllocationSiteDetails;
+import org.uniHD.memory.SiteSketch;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Map.Entry;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import static org.uniHD.memory.util.Constants.ALIVE_OBJECTS_COLUMN;
+import static org.uniHD.memory.util.Constants.ALLOCATED_BYTES_COLUMN;
 import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+import static org.uniHD.memory.util.Constants.CONTEXT_COLUMN;
+import static org.uniHD.memory.util.Constants.DUMP_MARKER;
 import static org.uniHD.memory.util.Constants.FILE_EXTENSION;
+import static org.uniHD.memory.util.Constants.GC_FILE_SUFFIX;
+import static org.uniHD.memory.util.Constants.GENERATIONS_COLUMN;
+import static org.uniHD.memory.util.Constants.METRICS_FILE_SUFFIX;
+import static org.uniHD.memory.util.Constants.SOURCE_COLUMN;
+import static org.uniHD.memory.util.Constants.TAIL_FILE_SUFFIX;
+import static org.uniHD.memory.util.Constants.THREAD_COLUMN;
 
 /**
  * Writes all currently registered live objects to a file.
@@ -21,19 +41,52 @@ import static org.uniHD.memory.util.Constants.FILE_EXTENSION;
 
 public final class LiveObjectDumpGenerator {
 	
-	private final static String HEADER 	= "Source" + COLUMN_SEPARATOR + 
+	private final static String HEADER 	= SOURCE_COLUMN + COLUMN_SEPARATOR + 
 									      "Class" + COLUMN_SEPARATOR + 
-									      "#AliveObjects" + COLUMN_SEPARATOR +
+									      CONTEXT_COLUMN + COLUMN_SEPARATOR +
+									      THREAD_COLUMN + COLUMN_SEPARATOR +
+									      ALIVE_OBJECTS_COLUMN + COLUMN_SEPARATOR +
 									      "#AllocatedObjects" + COLUMN_SEPARATOR +
 									      "#DeAllocatedObjects" + COLUMN_SEPARATOR +
-									      "Allocated Memory (bytes)" + COLUMN_SEPARATOR +
-											"Generational Information";
+									      ALLOCATED_BYTES_COLUMN + COLUMN_SEPARATOR +
+									      "Object Size (bytes)" + COLUMN_SEPARATOR +
+									      "Array Length" + COLUMN_SEPARATOR +
+									      "#HumongousObjects" + COLUMN_SEPARATOR +
+									      "Humongous Memory (bytes)" + COLUMN_SEPARATOR +
+									      "Sampling Interval" + COLUMN_SEPARATOR +
+									      "#UntrackedObjects" + COLUMN_SEPARATOR +
+									      "Lifetime (generations)" + COLUMN_SEPARATOR +
+									      "Lifetime (ms)" + COLUMN_SEPARATOR +
+											GENERATIONS_COLUMN;
+	
+	private final static String TAIL_HEADER 	= SOURCE_COLUMN + COLUMN_SEPARATOR + 
+										  "Class" + COLUMN_SEPARATOR + 
+										  CONTEXT_COLUMN + COLUMN_SEPARATOR +
+										  THREAD_COLUMN + COLUMN_SEPARATOR +
+										  "Estimated Memory (bytes)" + COLUMN_SEPARATOR +
+										  "Error (bytes)" + COLUMN_SEPARATOR +
+										  "#EstimatedObjects" + COLUMN_SEPARATOR +
+										  "Error (objects)";
+	
+	/**
+	 * Number of sites captured and formatted by one task, and number of formatted shards per thread which may wait to
+	 * be written.
+	 */
+	private final static int SHARD_SIZE = 1024;
+	private final static int SHARDS_IN_FLIGHT = 4;
+	private final static String LINE_SEPARATOR = System.getProperty("line.separator");
+	
+	private static int parallelism = Runtime.getRuntime().availableProcessors();
+	private static ForkJoinPool pool;
 	
 	private LiveObjectDumpGenerator() { /* supports static referencing only */ }
 	
 	/**
 	 * Method to concurrently dump live object information to the file given by its file name. This method will overwrite existing
-	 * data.
+	 * data. Every dump starts with a line "{@link Constants#DUMP_MARKER},expDetails", so that the dumps appended to a
+	 * file can be told apart regardless of the order of their sites. The agent's own metrics are appended to a second file with the suffix {@link Constants#METRICS_FILE_SUFFIX}
+	 * and the occupancy of the heap pools after the recent GCs replaces a third one with the suffix
+	 * {@link Constants#GC_FILE_SUFFIX}.
 	 * 
 	 * @param fileName
 	 * @param expDetails
@@ -41,6 +94,7 @@ public final class LiveObjectDumpGenerator {
 	 */
 	public final static void dumpToFile(final String fileName, final String expDetails) throws IOException {
 		
+		final long start = System.currentTimeMillis();
 		final File f = new File(fileName + FILE_EXTENSION);
 		final BufferedWriter writer = new BufferedWriter(new FileWriter(f, true));
 		try {
@@ -51,16 +105,231 @@ public final class LiveObjectDumpGenerator {
 				writer.newLine();
 			}
 			
-			for (Entry<String, AllocationSiteDetails> entry : LiveObjectMap.INSTANCE) {
+			writer.write(DUMP_MARKER + COLUMN_SEPARATOR + expDetails);
+			writer.newLine();
+			writeRows(writer);
+		} finally {
+			
+			writer.close();
+		}
+		AgentMetrics.dumpFinished(System.currentTimeMillis() - start);
+		dumpMetricsToFile(fileName, expDetails);
+		if (LiveObjectMap.getTailSites() != null) {
+			dumpTailToFile(fileName, expDetails);
+		}
+		final BufferedWriter gcWriter = new BufferedWriter(new FileWriter(fileName + GC_FILE_SUFFIX + FILE_EXTENSION));
+		try {
+			
+			GcTimeline.writeTimeline(gcWriter);
+		} finally {
+			
+			gcWriter.close();
+		}
+	}
+
+	/**
+	 * Appends the estimates of the sites which are not tracked exactly in bounded mode to the file with the suffix
+	 * {@link Constants#TAIL_FILE_SUFFIX}. Each estimate is an upper bound of the live bytes and objects of a
+	 * site, see {@link SiteSketch}; sites not listed are bounded by the smallest estimate. Like the dump, the estimates
+	 * start with a line "{@link Constants#DUMP_MARKER},expDetails".
+	 * 
+	 * @param fileName
+	 * @param expDetails
+	 * @throws IOException
+	 */
+	public final static void dumpTailToFile(final String fileName, final String expDetails) throws IOException {
+		
+		final File f = new File(fileName + TAIL_FILE_SUFFIX + FILE_EXTENSION);
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(f, true));
+		try {
+			
+			if (f.length() == 0) {
+				
+				writer.write(TAIL_HEADER);
+				writer.newLine();
+			}
+			writer.write(DUMP_MARKER + COLUMN_SEPARATOR + expDetails);
+			writer.newLine();
+			for (SiteSketch.Entry entry : LiveObjectMap.getTailSites().entries()) {
+				
+				writer.write(entry.toIdentifierColumns() + COLUMN_SEPARATOR + entry.getBytes() + COLUMN_SEPARATOR
+						+ entry.getError() + COLUMN_SEPARATOR + entry.getObjects() + COLUMN_SEPARATOR
+						+ entry.getObjectError());
+				writer.newLine();
+			}
+		} finally {
+			
+			writer.close();
+		}
+	}
+
+	/**
+	 * Method to write the header and the live object information to the given writer, e.g. to stream a snapshot to a
+	 * remote collector. The writer is flushed, but not closed.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	public final static void writeSnapshot(final Writer writer) throws IOException {
+		
+		final long start = System.currentTimeMillis();
+		final BufferedWriter buffered = new BufferedWriter(writer);
+		buffered.write(HEADER);
+		buffered.newLine();
+		writeRows(buffered);
+		buffered.flush();
+		AgentMetrics.dumpFinished(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Writes the header and the lines of the given sites to the given writer, e.g. the largest sites ranked by
+	 * {@link LiveObjectMap#top(int, int)}. The writer is flushed, but not closed.
+	 * 
+	 * @param writer
+	 * @param sites
+	 * @throws IOException
+	 */
+	public final static void writeSites(final Writer writer, final Collection<AllocationSiteDetails> sites)
+			throws IOException {
+		
+		final BufferedWriter buffered = new BufferedWriter(writer);
+		buffered.write(HEADER);
+		buffered.newLine();
+		for (AllocationSiteDetails site : sites) {
+			
+			buffered.write(site.toIdentifierColumns() + COLUMN_SEPARATOR + site.snapshot());
+			buffered.newLine();
+		}
+		buffered.flush();
+	}
+
+	/**
+	 * Sets the number of threads serializing a dump, 0 for one per available processor. Takes effect with the next dump.
+	 * 
+	 * @param threads
+	 */
+	public static synchronized void setParallelism(final int threads) {
+		
+		if (threads < 0) {
+			throw new IllegalArgumentException("Number of dump threads must not be negative, got " + threads);
+		}
+		parallelism = (threads == 0) ? Runtime.getRuntime().availableProcessors() : threads;
+		if (pool != null && pool.getParallelism() != parallelism) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	private static synchronized ForkJoinPool pool() {
+		
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+	/**
+	 * Writes one line per allocation site. The sites are taken from the map in shards of SHARD_SIZE sites, each of which
+	 * is snapshotted (without blocking the allocating threads, see {@link AllocationSiteDetails#snapshot()}) and
+	 * formatted by a task of the pool; the shards are written in order, at most SHARDS_IN_FLIGHT per thread ahead of
+	 * the one being written. So only the shards in flight are held in memory, whatever the number of sites.
+	 */
+	private static void writeRows(final Writer writer) throws IOException {
+		
+		final ForkJoinPool pool = pool();
+		final Iterator<AllocationSiteDetails> sites = LiveObjectMap.sites().iterator();
+		final int window = SHARDS_IN_FLIGHT * pool.getParallelism();
+		final ArrayDeque<ForkJoinTask<String>> inFlight = new ArrayDeque<ForkJoinTask<String>>(window);
+		boolean written = false;
+		try {
+			for (;;) {
+				
+				while (inFlight.size() < window && sites.hasNext()) {
+					inFlight.add(pool.submit(new ShardFormatter(nextShard(sites))));
+				}
+				if (inFlight.isEmpty()) {
+					break;
+				}
+				writer.write(inFlight.poll().join());
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				// e.g. the client of a streamed snapshot disconnected, the shards not written yet are not needed
+				for (ForkJoinTask<?> shard : inFlight) {
+					shard.cancel(false);
+				}
+			}
+		}
+	}
+	
+	private static AllocationSiteDetails[] nextShard(final Iterator<AllocationSiteDetails> sites) {
+		
+		final AllocationSiteDetails[] shard = new AllocationSiteDetails[SHARD_SIZE];
+		int size = 0;
+		while (size < SHARD_SIZE && sites.hasNext()) {
+			shard[size++] = sites.next();
+		}
+		return (size == SHARD_SIZE) ? shard : Arrays.copyOf(shard, size);
+	}
+
+	/**
+	 * Snapshots a shard of sites and formats them, one line per site.
+	 */
+	private final static class ShardFormatter implements Callable<String> {
+		
+		private final AllocationSiteDetails[] sites;
+		
+		private ShardFormatter(final AllocationSiteDetails[] sites) {
+			
+			this.sites = sites;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public String call() {
+			
+			final StringBuilder result = new StringBuilder(256 * sites.length);
+			for (AllocationSiteDetails site : sites) {
 				
 				// TODO filter 0,0 values to decrease the size of generated CSV files
-				writer.write(String.format("%s%c%s%n",
-						entry.getKey(),
-						COLUMN_SEPARATOR,
-						entry.getValue().toString(), 
-						COLUMN_SEPARATOR,
-						expDetails));
+				result.append(site.toIdentifierColumns()).append(COLUMN_SEPARATOR).append(site.snapshot())
+						.append(LINE_SEPARATOR);
+			}
+			return result.toString();
+		}
+	}
+
+	/**
+	 * Appends one line with the current agent metrics to the metrics file belonging to the given dump file name.
+	 * 
+	 * @param fileName
+	 * @param expDetails
+	 * @throws IOException
+	 */
+	public final static void dumpMetricsToFile(final String fileName, final String expDetails) throws IOException {
+		
+		final Map<String, Long> metrics = AgentMetrics.snapshot();
+		final File f = new File(fileName + METRICS_FILE_SUFFIX + FILE_EXTENSION);
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(f, true));
+		try {
+			
+			if (f.length() == 0) {
+				
+				writer.write("Experiment");
+				for (String name : metrics.keySet()) {
+					writer.write(COLUMN_SEPARATOR + name);
+				}
+				writer.newLine();
+			}
+			writer.write(expDetails);
+			for (Long value : metrics.values()) {
+				writer.write(COLUMN_SEPARATOR + value.toString());
 			}
+			writer.newLine();
 		} finally {
 			
 			writer.close();
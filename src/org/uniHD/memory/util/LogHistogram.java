@@ -0,0 +1,110 @@
+package org.uniHD.memory.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with logarithmic (power of two) buckets. Bucket 0 counts values <= 0, bucket b > 0 counts the
+ * values in [2^(b-1), 2^b - 1]; values beyond the last bucket are counted in the last bucket. Recording a value is a
+ * single atomic increment and does not allocate.
+ */
+public final class LogHistogram {
+
+	/**
+	 * Enough buckets for any non-negative long.
+	 */
+	public final static int MAX_BUCKETS = 65;
+
+	private final AtomicLongArray counts;
+
+	public LogHistogram(final int buckets) {
+		if (buckets < 2 || buckets > MAX_BUCKETS) {
+			throw new IllegalArgumentException("Number of buckets must be in 2.." + MAX_BUCKETS + ", got " + buckets);
+		}
+		this.counts = new AtomicLongArray(buckets);
+	}
+
+	/**
+	 * @param value
+	 * @return the index of the bucket counting the given value, ignoring the number of buckets of a histogram.
+	 */
+	public static int bucketOf(final long value) {
+		return (value <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	/**
+	 * @param bucket
+	 * @return the largest value counted in the given bucket.
+	 */
+	public static long upperBound(final int bucket) {
+		return (bucket == 0) ? 0 : (bucket >= 64) ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	public void record(final long value) {
+		counts.incrementAndGet(Math.min(bucketOf(value), counts.length() - 1));
+	}
+
+	/**
+	 * Records the given value as often as given by count.
+	 */
+	public void record(final long value, final long count) {
+		counts.addAndGet(Math.min(bucketOf(value), counts.length() - 1), count);
+	}
+
+	public int numBuckets() {
+		return counts.length();
+	}
+
+	public long count(final int bucket) {
+		return counts.get(bucket);
+	}
+
+	public long totalCount() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param quantile - in [0, 1].
+	 * @return the upper bound of the bucket containing the given quantile, 0 for an empty histogram.
+	 */
+	public long quantile(final double quantile) {
+		final long total = totalCount();
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(counts.length() - 1);
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	/**
+	 * @return the non-empty buckets as "bucket:count" pairs separated by ';', so the result fits into a single CSV
+	 * column.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder result = new StringBuilder();
+		for (int i = 0; i < counts.length(); i++) {
+			final long count = counts.get(i);
+			if (count != 0) {
+				result.append(result.length() == 0 ? "" : ";").append(i).append(':').append(count);
+			}
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,240 @@
+package org.uniHD.memory.util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.uniHD.memory.util.Constants.COLUMN_SEPARATOR;
+
+/**
+ * Compares two snapshots of the allocation sites and lists the sites which grew most between them, e.g. the dumps
+ * {@link org.uniHD.memory.adapter.SingleJUnitTestRunner} writes before and after a test run. Given one dump file, its
+ * first and last dump are compared; given two, the last dump of each. The files are parsed concurrently as by
+ * {@link DumpAnalyzer}; then the sites of the later snapshot are joined with the hash table of the earlier one on their
+ * identifier columns (source,class,context,thread), which are compared as bytes, never decoded.
+ *
+ * A site is listed if its alive objects grew by at least minObjects and its live bytes by at least minBytes, and it
+ * grew in at least one of them; sites missing in the earlier snapshot count as grown from 0. The top sites are printed
+ * as CSV, ranked by the growth of their bytes or objects.
+ *
+ * usage: SnapshotDiff <file> [<file>] [-before <dump>] [-after <dump>] [-by bytes|objects] [-minObjects <n>]
+ * 			[-minBytes <n>] [-top <n>]
+ */
+public class SnapshotDiff {
+
+	public final static int DEFAULT_TOP = 50;
+	/**
+	 * Index of a dump standing for the last dump of a file.
+	 */
+	public final static int LAST_DUMP = -1;
+
+	private final static String OUTPUT_HEADER = "Source" + COLUMN_SEPARATOR +
+												"Class" + COLUMN_SEPARATOR +
+												"Context" + COLUMN_SEPARATOR +
+												"Thread" + COLUMN_SEPARATOR +
+												"#AliveObjects (before)" + COLUMN_SEPARATOR +
+												"#AliveObjects (after)" + COLUMN_SEPARATOR +
+												"Growth (objects)" + COLUMN_SEPARATOR +
+												"Allocated Memory (bytes, before)" + COLUMN_SEPARATOR +
+												"Allocated Memory (bytes, after)" + COLUMN_SEPARATOR +
+												"Growth (bytes)";
+
+	private final boolean byObjects;
+	private final long minObjects;
+	private final long minBytes;
+	private final int top;
+
+	public SnapshotDiff(final boolean byObjects, final long minObjects, final long minBytes, final int top) {
+
+		this.byObjects = byObjects;
+		this.minObjects = minObjects;
+		this.minBytes = minBytes;
+		this.top = top;
+	}
+
+	/**
+	 * @param args - one or two dump files, followed by the options.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String before = null;
+		String after = null;
+		int beforeDump = LAST_DUMP;
+		int afterDump = LAST_DUMP;
+		boolean byObjects = false;
+		long minObjects = 0L;
+		long minBytes = 0L;
+		int top = DEFAULT_TOP;
+		boolean valid = true;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-before") && i + 1 < args.length) {
+				beforeDump = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-after") && i + 1 < args.length) {
+				afterDump = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-by") && i + 1 < args.length) {
+				final String by = args[++i];
+				byObjects = by.equals("objects");
+				valid &= byObjects || by.equals("bytes");
+			} else if (args[i].equals("-minObjects") && i + 1 < args.length) {
+				minObjects = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-minBytes") && i + 1 < args.length) {
+				minBytes = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-top") && i + 1 < args.length) {
+				top = Integer.parseInt(args[++i]);
+			} else if (args[i].startsWith("-")) {
+				valid = false;
+			} else if (before == null) {
+				before = args[i];
+			} else if (after == null) {
+				after = args[i];
+			} else {
+				valid = false;
+			}
+		}
+		if (before == null || !valid || top < 1 || beforeDump < LAST_DUMP || afterDump < LAST_DUMP) {
+			System.out.println("usage: java -cp MemDefender.jar " + SnapshotDiff.class.getName()
+					+ " <file> [<file>] [-before <dump>] [-after <dump>] [-by bytes|objects] [-minObjects <n>]"
+					+ " [-minBytes <n>] [-top <n>]");
+			System.exit(1);
+		}
+		if (after == null) {
+			after = before;
+			if (beforeDump == LAST_DUMP) {
+				beforeDump = 0;
+			}
+		}
+
+		try {
+			new SnapshotDiff(byObjects, minObjects, minBytes, top).diff(before, beforeDump, after, afterDump, System.out);
+		} catch (ExecutionException e) {
+			System.err.println("Failed to read the snapshots: " + e.getCause());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Parses both snapshots concurrently and prints the sites which grew most from the first to the second.
+	 *
+	 * @param before - the file of the earlier snapshot.
+	 * @param beforeDump - index of the earlier snapshot in its file, the first is 0, {@link #LAST_DUMP} for the last.
+	 * @param after - the file of the later snapshot.
+	 * @param afterDump - index of the later snapshot in its file.
+	 * @param out
+	 * @return the number of sites listed.
+	 * @throws ExecutionException if a file cannot be parsed or holds fewer dumps than requested.
+	 * @throws InterruptedException
+	 */
+	public int diff(final String before, final int beforeDump, final String after, final int afterDump,
+			final PrintStream out) throws ExecutionException, InterruptedException {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		final Snapshot earlier;
+		final Snapshot later;
+		try {
+			final Future<Snapshot> earlierResult = executor.submit(new SnapshotParser(before, beforeDump));
+			final Future<Snapshot> laterResult = executor.submit(new SnapshotParser(after, afterDump));
+			earlier = earlierResult.get();
+			later = laterResult.get();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// growth of every site of the later snapshot, ranked by the chosen one
+		final int sites = later.analysis.getSites();
+		final long[] objectGrowth = new long[sites];
+		final long[] byteGrowth = new long[sites];
+		final int[] matches = new int[sites];
+		final long[] ranking = byObjects ? objectGrowth : byteGrowth;
+		final Comparator<Integer> byGrowth = new Comparator<Integer>() {
+
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return Long.compare(ranking[a], ranking[b]);
+			}
+		};
+		// the least grown of the most grown sites seen so far is at the head
+		final PriorityQueue<Integer> grown = new PriorityQueue<Integer>(top, byGrowth);
+		for (int site = 0; site < sites; site++) {
+			if (!later.analysis.isInDump(site, later.dump)) {
+				continue;
+			}
+			final int match = earlier.analysis.find(later.analysis, site);
+			matches[site] = (match >= 0 && earlier.analysis.isInDump(match, earlier.dump)) ? match : -1;
+			objectGrowth[site] = later.analysis.getAliveObjects(site)
+					- (matches[site] < 0 ? 0L : earlier.analysis.getAliveObjects(matches[site]));
+			byteGrowth[site] = later.analysis.getAliveBytes(site)
+					- (matches[site] < 0 ? 0L : earlier.analysis.getAliveBytes(matches[site]));
+			if (objectGrowth[site] < minObjects || byteGrowth[site] < minBytes
+					|| (objectGrowth[site] <= 0 && byteGrowth[site] <= 0)) {
+				continue;
+			}
+			if (grown.size() < top) {
+				grown.add(site);
+			} else if (ranking[site] > ranking[grown.peek()]) {
+				grown.poll();
+				grown.add(site);
+			}
+		}
+		final Integer[] ranked = grown.toArray(new Integer[grown.size()]);
+		Arrays.sort(ranked, Collections.reverseOrder(byGrowth));
+
+		out.println(OUTPUT_HEADER);
+		for (int site : ranked) {
+			final int match = matches[site];
+			out.println(later.analysis.getKey(site) + COLUMN_SEPARATOR
+					+ (match < 0 ? 0L : earlier.analysis.getAliveObjects(match)) + COLUMN_SEPARATOR
+					+ later.analysis.getAliveObjects(site) + COLUMN_SEPARATOR + objectGrowth[site] + COLUMN_SEPARATOR
+					+ (match < 0 ? 0L : earlier.analysis.getAliveBytes(match)) + COLUMN_SEPARATOR
+					+ later.analysis.getAliveBytes(site) + COLUMN_SEPARATOR + byteGrowth[site]);
+		}
+		out.flush();
+		return ranked.length;
+	}
+
+	/**
+	 * The sites of a file parsed up to the dump of the snapshot; the sites of the snapshot are those with a line in it.
+	 */
+	private final static class Snapshot {
+		private final DumpAnalyzer.FileAnalysis analysis;
+		private final int dump;
+
+		private Snapshot(final DumpAnalyzer.FileAnalysis analysis, final int dump) {
+			this.analysis = analysis;
+			this.dump = dump;
+		}
+	}
+
+	private final static class SnapshotParser implements Callable<Snapshot> {
+		private final String fileName;
+		private final int dump;
+
+		private SnapshotParser(final String fileName, final int dump) {
+			this.fileName = fileName;
+			this.dump = dump;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Snapshot call() throws Exception {
+			final DumpAnalyzer.FileAnalysis analysis = (dump == LAST_DUMP) ? new DumpAnalyzer.FileAnalysis()
+					: new DumpAnalyzer.FileAnalysis(dump);
+			analysis.parse(fileName);
+			if (dump != LAST_DUMP && analysis.getDumps() <= dump) {
+				throw new IllegalArgumentException(fileName + " holds " + analysis.getDumps() + " dumps, dump " + dump
+						+ " requested");
+			}
+			return new Snapshot(analysis, (dump == LAST_DUMP) ? analysis.getDumps() - 1 : dump);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.uniHD.memory.util;
+
+/**
+ * Sizing of the striped structures which the allocating threads update concurrently, e.g. the store of the injected
+ * leaks, the lists of the cleaners and the sketch of the untracked sites. A thread picks its stripe by masking its id
+ * (or the hash of the key it updates) with the number of stripes - 1.
+ */
+public final class Stripes {
+
+	private Stripes() { /* supports static referencing only */ }
+
+	/**
+	 * @param processors
+	 * @return the smallest power of two >= processors, at least 1.
+	 */
+	public static int forProcessors(final int processors) {
+
+		return (processors <= 1) ? 1 : Integer.highestOneBit(processors - 1) << 1;
+	}
+}
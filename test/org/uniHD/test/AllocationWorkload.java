@@ -0,0 +1,164 @@
+package org.uniHD.test;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Allocation-heavy workloads for the {@link OverheadHarness}. Each workload is a loop of identical operations; the
+ * latency of every operation is recorded and a single JSON object with throughput, latency percentiles, GC time and
+ * heap occupancy is appended to the given report file.
+ *
+ * usage: AllocationWorkload <workload> <operations> <reportFile> <label>
+ */
+public class AllocationWorkload {
+
+	/**
+	 * Names of the bundled workloads.
+	 */
+	public static final String[] WORKLOADS = { "strings", "collections", "arrays", "cache" };
+
+	private static final int CACHE_CAPACITY = 10000;
+
+	private final Random rand = new Random(42);
+	private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(CACHE_CAPACITY, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+			return size() > CACHE_CAPACITY;
+		}
+	};
+	private Integer lastValue = 10;
+	private long blackhole;
+
+	/**
+	 * Formats strings like {@link TestCode#main(String[])}, without printing them.
+	 */
+	private void strings(int i) {
+		Integer value = rand.nextInt(lastValue + i % 10000);
+		String myStringy = String.format("This is my value: %d", value);
+		lastValue = TestCode.someResult(myStringy, lastValue);
+	}
+
+	/**
+	 * Builds and discards short-lived collections.
+	 */
+	private void collections(int i) {
+		final List<String> list = new ArrayList<String>();
+		final Map<String, Integer> map = new HashMap<String, Integer>();
+		for (int j = 0; j < 20; j++) {
+			final String key = "key" + (i + j);
+			list.add(key);
+			map.put(key, j);
+		}
+		blackhole += list.size() + map.size();
+	}
+
+	/**
+	 * Allocates arrays of widely varying size, including occasional large ones.
+	 */
+	private void arrays(int i) {
+		final int length = (i % 1000 == 0) ? (1 << 20) : 16 << rand.nextInt(10);
+		final byte[] array = new byte[length];
+		array[length - 1] = (byte) i;
+		blackhole += array[length - 1];
+	}
+
+	/**
+	 * An LRU cache with churn: objects survive for a while and are then evicted.
+	 */
+	private void cache(int i) {
+		final Integer key = rand.nextInt(4 * CACHE_CAPACITY);
+		byte[] value = cache.get(key);
+		if (value == null) {
+			value = new byte[64 + rand.nextInt(512)];
+			cache.put(key, value);
+		}
+		blackhole += value.length;
+	}
+
+	private void run(final String workload, final int i) {
+		if (workload.equals("strings")) {
+			strings(i);
+		} else if (workload.equals("collections")) {
+			collections(i);
+		} else if (workload.equals("arrays")) {
+			arrays(i);
+		} else if (workload.equals("cache")) {
+			cache(i);
+		} else {
+			throw new IllegalArgumentException("Unknown workload '" + workload + "', expected one of "
+					+ Arrays.toString(WORKLOADS));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length != 4) {
+			System.err.println("usage: AllocationWorkload <workload> <operations> <reportFile> <label>");
+			System.exit(1);
+		}
+		final String workload = args[0];
+		final int operations = Integer.parseInt(args[1]);
+		final AllocationWorkload instance = new AllocationWorkload();
+
+		// warm up with a tenth of the operations, then measure
+		for (int i = 0; i < operations / 10; i++) {
+			instance.run(workload, i);
+		}
+		final long gcTimeBefore = gcTime();
+		final long gcCountBefore = gcCount();
+		final long[] latencies = new long[operations];
+		final long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			final long opStart = System.nanoTime();
+			instance.run(workload, i);
+			latencies[i] = System.nanoTime() - opStart;
+		}
+		final long elapsed = System.nanoTime() - start;
+		final long gcTime = gcTime() - gcTimeBefore;
+		final long gcCount = gcCount() - gcCountBefore;
+
+		// heap occupancy with the workload's own data still reachable, so the difference between runs is the agent
+		System.gc();
+		final long heapAfterGc = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		Arrays.sort(latencies);
+		final PrintWriter report = new PrintWriter(new FileWriter(args[2], true));
+		try {
+			report.printf(Locale.ROOT, "{\"label\":\"%s\",\"workload\":\"%s\",\"operations\":%d,\"seconds\":%.3f,"
+							+ "\"throughputOpsPerSec\":%.1f,\"p50Micros\":%.3f,\"p90Micros\":%.3f,\"p99Micros\":%.3f,"
+							+ "\"p999Micros\":%.3f,\"maxMicros\":%.3f,\"gcTimeMillis\":%d,\"gcCount\":%d,"
+							+ "\"heapAfterGcBytes\":%d}%n",
+					args[3], workload, operations, elapsed / 1e9, operations / (elapsed / 1e9),
+					percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+					percentile(latencies, 0.999), latencies[operations - 1] / 1e3, gcTime, gcCount, heapAfterGc);
+		} finally {
+			report.close();
+		}
+		// keep the results of the workload reachable until the heap has been measured
+		System.out.println("Workload " + workload + " done (" + instance.blackhole + ", " + instance.cache.size() + ")");
+	}
+
+	private static double percentile(final long[] sortedNanos, final double quantile) {
+		return sortedNanos[Math.min(sortedNanos.length - 1, (int) (quantile * sortedNanos.length))] / 1e3;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+}
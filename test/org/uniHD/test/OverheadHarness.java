@@ -0,0 +1,216 @@
+package org.uniHD.test;
+
+import org.uniHD.memory.util.Constants;
+import org.uniHD.memory.util.LOMClient;
+import org.uniHD.memory.util.LOMCollector;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Macro benchmark: runs each {@link AllocationWorkload} in a fresh JVM under several agent configurations and writes
+ * one machine-readable JSON report with throughput, latency percentiles, GC time and the agent's heap footprint
+ * (heap occupancy after a full GC minus the one of the run without agent).
+ *
+ * Configurations:
+ * <ul>
+ * <li>off - no agent</li>
+ * <li>full - agent monitoring all allocations of the workload</li>
+ * <li>injection - as full, plus transient leak injection for 10% of the objects</li>
+ * <li>dumps - as full, plus a dump request (without GC) to the child's control channel every second</li>
+ * <li>adaptive - agent with adaptive sampling of allocation sites without growth</li>
+ * </ul>
+ *
+ * usage: OverheadHarness [-agent <jar>] [-sources <dir>] [-out <file>] [-ops <n>] [-workloads a,b] [-configs a,b]
+ */
+public class OverheadHarness {
+
+	private static final String[] CONFIGS = { "off", "full", "injection", "dumps", "adaptive" };
+	private static final long DUMP_INTERVAL_MILLIS = 1000;
+	private static final Pattern NUMBER_FIELD = Pattern.compile("\"%s\":([0-9.]+)");
+
+	public static void main(String[] args) throws Exception {
+
+		String agentJar = "dist/MemDefender.jar";
+		String sources = "test";
+		String output = "overhead-report.json";
+		String operations = "200000";
+		String workloads = join(AllocationWorkload.WORKLOADS);
+		String configs = join(CONFIGS);
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-agent")) {
+				agentJar = args[i + 1];
+			} else if (args[i].equals("-sources")) {
+				sources = args[i + 1];
+			} else if (args[i].equals("-out")) {
+				output = args[i + 1];
+			} else if (args[i].equals("-ops")) {
+				operations = args[i + 1];
+			} else if (args[i].equals("-workloads")) {
+				workloads = args[i + 1];
+			} else if (args[i].equals("-configs")) {
+				configs = args[i + 1];
+			} else {
+				System.err.println("usage: OverheadHarness [-agent <jar>] [-sources <dir>] [-out <file>] [-ops <n>] "
+						+ "[-workloads a,b] [-configs a,b]");
+				System.exit(1);
+			}
+		}
+
+		final File workDir = Files.createTempDirectory("memDefender-overhead").toFile();
+		final File rawReport = new File(workDir, "runs.jsonl");
+		final List<String> results = new ArrayList<String>();
+		for (String workload : workloads.split(",")) {
+			Long heapWithoutAgent = null;
+			for (String config : configs.split(",")) {
+				final String run = runWorkload(workload, config, operations, new File(agentJar).getAbsoluteFile(),
+						new File(sources).getAbsoluteFile(), workDir, rawReport);
+				if (run == null) {
+					results.add(String.format("{\"label\":\"%s\",\"workload\":\"%s\",\"failed\":true}", config, workload));
+					continue;
+				}
+				final long heap = (long) numberField(run, "heapAfterGcBytes");
+				if (config.equals("off")) {
+					heapWithoutAgent = heap;
+				}
+				final String footprint = (heapWithoutAgent == null) ? "null" : String.valueOf(heap - heapWithoutAgent);
+				results.add(run.substring(0, run.lastIndexOf('}')) + ",\"agentFootprintBytes\":" + footprint + "}");
+				System.out.println(results.get(results.size() - 1));
+			}
+		}
+
+		final PrintWriter report = new PrintWriter(new FileWriter(output));
+		try {
+			report.printf("{\"java\":\"%s\",\"os\":\"%s\",\"processors\":%d,\"operations\":%s,\"results\":[%n",
+					System.getProperty("java.version"), System.getProperty("os.name"),
+					Runtime.getRuntime().availableProcessors(), operations);
+			for (int i = 0; i < results.size(); i++) {
+				report.print("  " + results.get(i) + (i + 1 < results.size() ? ",\n" : "\n"));
+			}
+			report.println("]}");
+		} finally {
+			report.close();
+		}
+		System.out.println("Overhead report written to " + output);
+	}
+
+	/**
+	 * Runs a workload in a child JVM.
+	 *
+	 * @return the JSON line reported by the child, null if the run failed.
+	 */
+	private static String runWorkload(final String workload, final String config, final String operations,
+									  final File agentJar, final File sources, final File workDir,
+									  final File rawReport) throws Exception {
+		final List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-Xmx2g");
+		if (!config.equals("off")) {
+			command.add("-javaagent:" + agentJar.getPath() + "=" + writeAgentConfig(config, sources, workDir).getPath());
+		}
+		command.add("-cp");
+		// only the workloads, the agent brings its own classes
+		command.add(new File(AllocationWorkload.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+		command.add(AllocationWorkload.class.getName());
+		command.add(workload);
+		command.add(operations);
+		command.add(rawReport.getPath());
+		command.add(config);
+
+		final long reportedBefore = rawReport.length();
+		// the agents listening already, so that the dumper finds the port of the child's agent
+		final List<Integer> otherAgents = config.equals("dumps") ? LOMCollector.discover(LOMCollector.DEFAULT_PORTS)
+				: null;
+		final Process child = new ProcessBuilder(command).directory(workDir).redirectErrorStream(true)
+				.redirectOutput(new File(workDir, workload + "-" + config + ".log")).start();
+		final Thread dumper = config.equals("dumps") ? startDumper(child, otherAgents) : null;
+		final int exitCode = child.waitFor();
+		if (dumper != null) {
+			dumper.interrupt();
+			dumper.join();
+		}
+		if (exitCode != 0 || rawReport.length() == reportedBefore) {
+			System.err.println("Run " + workload + "/" + config + " failed, see " + workDir);
+			return null;
+		}
+		final List<String> lines = Files.readAllLines(rawReport.toPath());
+		return lines.get(lines.size() - 1);
+	}
+
+	private static File writeAgentConfig(final String config, final File sources, final File workDir)
+			throws IOException {
+		final Properties props = new Properties();
+		props.setProperty("general.sourcePaths", sources.getPath());
+		props.setProperty("general.appName", "overhead-" + config);
+		if (config.equals("injection")) {
+			props.setProperty("injector.on", "true");
+			props.setProperty("injector.leakRatio", "10");
+			props.setProperty("injector.mode", "transient");
+			props.setProperty("injector.lifetimeMs", "1000");
+		} else if (config.equals("adaptive")) {
+			props.setProperty("sampling.adaptive", "true");
+		}
+		final File file = new File(workDir, config + ".properties");
+		final Writer writer = new FileWriter(file);
+		try {
+			props.store(writer, "MemDefender overhead harness, configuration " + config);
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Requests a dump from the agent of the child every DUMP_INTERVAL_MILLIS until interrupted. The dumps are requested
+	 * with the "dump" command, which runs no GC, from the agent on the first port not taken by the other agents.
+	 */
+	private static Thread startDumper(final Process child, final List<Integer> otherAgents) {
+		final Thread dumper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int dump = 0;
+				int port = -1;
+				while (child.isAlive()) {
+					try {
+						Thread.sleep(DUMP_INTERVAL_MILLIS);
+						if (port < 0) {
+							for (int candidate : LOMCollector.discover(LOMCollector.DEFAULT_PORTS)) {
+								if (!otherAgents.contains(candidate)) {
+									port = candidate;
+									break;
+								}
+							}
+						}
+						if (port >= 0) {
+							LOMClient.sendCommand(port, Constants.COMMAND_PREFIX + "dump" + Constants.MESSAGE_SEPARATOR
+									+ "harness" + Constants.MESSAGE_SEPARATOR + "dump-" + dump++);
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (Exception e) {
+						// the child is not yet or no longer listening
+					}
+				}
+			}
+		}, "OverheadHarness-dumper");
+		dumper.setDaemon(true);
+		dumper.start();
+		return dumper;
+	}
+
+	private static double numberField(final String json, final String field) {
+		final Matcher m = Pattern.compile(String.format(NUMBER_FIELD.pattern(), field)).matcher(json);
+		return m.find() ? Double.parseDouble(m.group(1)) : 0;
+	}
+
+	private static String join(final String[] values) {
+		final StringBuilder result = new StringBuilder();
+		for (String value : values) {
+			result.append(result.length() == 0 ? "" : ",").append(value);
+		}
+		return result.toString();
+	}
+}